@@ -0,0 +1,140 @@
+package com.zookeeper.study.benchmark;
+
+import com.zookeeper.study.distributed.*;
+import org.apache.zookeeper.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Latency of entering and leaving {@link ZookeeperDoubleBarrier} and the count of rounds per second. The participants
+ * are driven by the asynchronous API and spread over several sessions, so the server delivers the notifications of a
+ * round to every session instead of a single one.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DoubleBarrierBenchmark {
+    private static final String PATH = "/benchmark-double-barrier";
+
+    @Param({"1", "3"})
+    int ensembleSize;
+
+    @Param({"10", "100"})
+    int participants;
+
+    @Param({"4"})
+    int sessions;
+
+    @Param({"BROADCAST", "CHAINED"})
+    ZookeeperDoubleBarrier.LeaveMode leaveMode;
+
+    @Param({"false", "true"})
+    boolean cyclic;
+
+    private EmbeddedEnsemble ensemble;
+    private final List<ZooKeeper> zookeepers = new ArrayList<>();
+    private final List<ZookeeperDoubleBarrier> barriers = new ArrayList<>();
+
+    /**
+     * The participants have entered the barrier when the benchmark method leaves it.
+     */
+    @State(Scope.Benchmark)
+    public static class EnteredBefore {
+        private DoubleBarrierBenchmark benchmark;
+
+        @Setup(Level.Trial)
+        public void setUp(DoubleBarrierBenchmark benchmark) {
+            this.benchmark = benchmark;
+        }
+
+        @Setup(Level.Invocation)
+        public void enter() {
+            benchmark.all(ZookeeperDoubleBarrier::enterAsync);
+        }
+    }
+
+    /**
+     * The participants leave the barrier after the benchmark method has entered it.
+     */
+    @State(Scope.Benchmark)
+    public static class LeftAfter {
+        private DoubleBarrierBenchmark benchmark;
+
+        @Setup(Level.Trial)
+        public void setUp(DoubleBarrierBenchmark benchmark) {
+            this.benchmark = benchmark;
+        }
+
+        @TearDown(Level.Invocation)
+        public void leave() {
+            benchmark.all(ZookeeperDoubleBarrier::leaveAsync);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ensemble = EmbeddedEnsemble.start(ensembleSize);
+        for (int i = 0; i < sessions; i++) {
+            var zk = ensemble.connect();
+            zookeepers.add(zk);
+        }
+        for (int i = 0; i < participants; i++) {
+            var zk = zookeepers.get(i % sessions);
+            barriers.add(new ZookeeperDoubleBarrier(zk, PATH, participants, leaveMode, cyclic));
+        }
+        barriers.get(0).init();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        for (var zk : zookeepers) {
+            zk.close();
+        }
+        ensemble.close();
+    }
+
+    /**
+     * One whole round, all the participants enter and then leave the barrier.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void round() {
+        all((barrier, name) -> barrier.enterAsync(name).thenCompose(v -> barrier.leaveAsync(name)));
+    }
+
+    /**
+     * The time from the first participant entering to the last one passing the barrier.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void enter(LeftAfter leftAfter) {
+        all(ZookeeperDoubleBarrier::enterAsync);
+    }
+
+    /**
+     * The time from the first participant leaving to the last one having left the barrier.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void leave(EnteredBefore enteredBefore) {
+        all(ZookeeperDoubleBarrier::leaveAsync);
+    }
+
+    private interface Operation {
+        CompletableFuture<Void> apply(ZookeeperDoubleBarrier barrier, String name);
+    }
+
+    private void all(Operation operation) {
+        var futures = new CompletableFuture<?>[participants];
+        for (int i = 0; i < participants; i++) {
+            futures[i] = operation.apply(barriers.get(i), "participant-" + i);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+}
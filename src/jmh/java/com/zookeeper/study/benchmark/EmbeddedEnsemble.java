@@ -0,0 +1,165 @@
+package com.zookeeper.study.benchmark;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.server.*;
+import org.apache.zookeeper.server.quorum.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A ZooKeeper ensemble running in the benchmark JVM, either a standalone server or a quorum of several servers on the
+ * loopback interface. The benchmarks don't need the ensemble of zookeeper.properties.
+ */
+public class EmbeddedEnsemble implements Closeable {
+    private static final int TICK_TIME = 2000;
+    private static final int SESSION_TIMEOUT = 10 * 1000;
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    private final List<Closeable> servers = new ArrayList<>();
+    private final List<String> hosts = new ArrayList<>();
+
+    /**
+     * Exposes the {@link QuorumPeer} of {@link QuorumPeerMain} so that it can be shut down.
+     */
+    private static class QuorumServer extends QuorumPeerMain implements Closeable {
+        @Override
+        public void close() {
+            if (quorumPeer != null) {
+                quorumPeer.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Start an ensemble and wait until it serves requests.
+     *
+     * @param size the count of the servers, 1 for a standalone server.
+     * @return the started ensemble.
+     * @throws Exception If the ensemble can not be started.
+     */
+    public static EmbeddedEnsemble start(int size) throws Exception {
+        // the admin server would bind to port 8080 for every server.
+        System.setProperty("zookeeper.admin.enableServer", "false");
+        var ensemble = new EmbeddedEnsemble();
+        try {
+            if (size == 1) {
+                ensemble.startStandalone();
+            } else {
+                ensemble.startQuorum(size);
+            }
+            ensemble.connect().close();
+        } catch (Exception e) {
+            ensemble.close();
+            throw e;
+        }
+        return ensemble;
+    }
+
+    private void startStandalone() throws IOException, InterruptedException {
+        var dir = Files.createTempDirectory("zookeeper-standalone").toFile();
+        var server = new ZooKeeperServer(dir, dir, TICK_TIME);
+        var port = freePort();
+        var factory = ServerCnxnFactory.createFactory(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                5000);
+        factory.startup(server);
+        servers.add(factory::shutdown);
+        hosts.add("127.0.0.1:" + port);
+    }
+
+    private void startQuorum(int size) throws Exception {
+        var clientPorts = new int[size];
+        var members = new Properties();
+        for (int i = 1; i <= size; i++) {
+            clientPorts[i - 1] = freePort();
+            members.setProperty("server." + i, "127.0.0.1:" + freePort() + ":" + freePort());
+        }
+        for (int i = 1; i <= size; i++) {
+            var dir = Files.createTempDirectory("zookeeper-" + i);
+            Files.writeString(dir.resolve("myid"), Integer.toString(i));
+            var properties = new Properties();
+            properties.putAll(members);
+            properties.setProperty("tickTime", Integer.toString(TICK_TIME));
+            properties.setProperty("initLimit", "10");
+            properties.setProperty("syncLimit", "5");
+            properties.setProperty("dataDir", dir.toString());
+            properties.setProperty("clientPort", Integer.toString(clientPorts[i - 1]));
+            var config = new QuorumPeerConfig();
+            config.parseProperties(properties);
+            var server = new QuorumServer();
+            var thread = new Thread(() -> {
+                try {
+                    server.runFromConfig(config);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "quorum-peer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            servers.add(server);
+            hosts.add("127.0.0.1:" + clientPorts[i - 1]);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Get the connection string of all the servers.
+     *
+     * @return the connection string.
+     */
+    public String connectString() {
+        return String.join(",", hosts);
+    }
+
+    /**
+     * Open a new session and wait until it is connected.
+     *
+     * @return the connected session.
+     * @throws Exception If the session can not connect in time.
+     */
+    public ZooKeeper connect() throws Exception {
+        var latch = new CountDownLatch(1);
+        var zk = new ZooKeeper(connectString(), SESSION_TIMEOUT, event -> {
+            if (Watcher.Event.KeeperState.SyncConnected.equals(event.getState())) {
+                latch.countDown();
+            }
+        });
+        if (!latch.await(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            zk.close();
+            throw new TimeoutException("Can not connect to " + connectString());
+        }
+        // a quorum accepts connections before it has a leader, wait until it serves requests.
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CONNECT_TIMEOUT_SECONDS);
+        while (true) {
+            try {
+                zk.exists("/", false);
+                return zk;
+            } catch (KeeperException e) {
+                if (System.nanoTime() > deadline) {
+                    zk.close();
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (var server : servers) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        servers.clear();
+    }
+}
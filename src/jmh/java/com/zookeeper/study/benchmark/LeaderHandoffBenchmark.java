@@ -0,0 +1,86 @@
+package com.zookeeper.study.benchmark;
+
+import com.zookeeper.study.distributed.lock.*;
+import org.apache.zookeeper.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Leadership handoff latency of {@link LeaderElection}: the time from the leader resigning to the next candidate
+ * knowing it leads. Every candidate has its own session, like applications on different hosts, and the resigned leader
+ * runs again at the end of the queue, so the count of candidates stays the same.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LeaderHandoffBenchmark {
+    private static final String PATH = "/benchmark-election";
+
+    @Param({"1", "3"})
+    int ensembleSize;
+
+    @Param({"2", "20"})
+    int candidates;
+
+    private EmbeddedEnsemble ensemble;
+    private final List<ZooKeeper> zookeepers = new ArrayList<>();
+    private final List<LeaderElection> elections = new ArrayList<>();
+    private final List<CompletableFuture<Void>> leads = new ArrayList<>();
+    private int leader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ensemble = EmbeddedEnsemble.start(ensembleSize);
+        for (int i = 0; i < candidates; i++) {
+            var zk = ensemble.connect();
+            zookeepers.add(zk);
+            var election = new LeaderElection(zk, PATH, "candidate-" + i);
+            elections.add(election);
+            leads.add(election.runAsync());
+        }
+        leader = nextLeader(-1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        for (var zk : zookeepers) {
+            zk.close();
+        }
+        ensemble.close();
+    }
+
+    /**
+     * The leader resigns and the next candidate takes over.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void handoff() {
+        var resigned = leader;
+        elections.get(resigned).resign();
+        leader = nextLeader(resigned);
+        leads.set(resigned, elections.get(resigned).runAsync());
+    }
+
+    /**
+     * Wait for a candidate other than the one which resigned to lead.
+     */
+    private int nextLeader(int resigned) {
+        var running = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < candidates; i++) {
+            if (i != resigned) {
+                running.add(leads.get(i));
+            }
+        }
+        CompletableFuture.anyOf(running.toArray(new CompletableFuture<?>[0])).join();
+        for (int i = 0; i < candidates; i++) {
+            if (i != resigned && elections.get(i).isLeader()) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("No candidate leads.");
+    }
+}
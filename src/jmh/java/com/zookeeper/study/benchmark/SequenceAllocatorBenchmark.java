@@ -0,0 +1,48 @@
+package com.zookeeper.study.benchmark;
+
+import com.zookeeper.study.distributed.*;
+import org.apache.zookeeper.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.*;
+
+/**
+ * IDs per second from {@link SequenceAllocator}, with several threads sharing one allocator. A small block has the
+ * threads waiting for leases, a large one leaves only the {@link java.util.concurrent.atomic.AtomicLong}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class SequenceAllocatorBenchmark {
+    @Param({"1", "3"})
+    int ensembleSize;
+
+    @Param({"1000", "100000"})
+    int blockSize;
+
+    private EmbeddedEnsemble ensemble;
+    private ZooKeeper zk;
+    private SequenceAllocator allocator;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ensemble = EmbeddedEnsemble.start(ensembleSize);
+        zk = ensemble.connect();
+        allocator = new SequenceAllocator(zk, "/benchmark-sequence", blockSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        zk.close();
+        ensemble.close();
+    }
+
+    @Benchmark
+    public long next() throws InterruptedException {
+        return allocator.next();
+    }
+}
@@ -0,0 +1,99 @@
+package com.zookeeper.study.benchmark;
+
+import org.apache.zookeeper.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Latency of delivering a child watch to every watcher, the watchers behave like
+ * {@link com.zookeeper.study.distributed.app.WatcherTestApp}: each of them sets the watch again with a synchronous
+ * getChildren on the event thread. The measured time is from creating a child until the last watcher has set its
+ * watch again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WatchDeliveryBenchmark {
+    private static final String ROOT = "/benchmark-watch-delivery";
+
+    @Param({"1", "3"})
+    int ensembleSize;
+
+    @Param({"10", "100", "1000"})
+    int watchers;
+
+    @Param({"10"})
+    int sessions;
+
+    private EmbeddedEnsemble ensemble;
+    private final List<ZooKeeper> zookeepers = new ArrayList<>();
+    private volatile CountDownLatch delivered;
+    private ZooKeeper producer;
+    private String child;
+
+    private class ChildWatcher implements Watcher {
+        private final ZooKeeper zk;
+
+        ChildWatcher(ZooKeeper zk) {
+            this.zk = zk;
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.None) {
+                return;
+            }
+            try {
+                zk.getChildren(ROOT, this);
+            } catch (KeeperException | InterruptedException e) {
+                e.printStackTrace();
+            }
+            delivered.countDown();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ensemble = EmbeddedEnsemble.start(ensembleSize);
+        for (int i = 0; i < sessions; i++) {
+            zookeepers.add(ensemble.connect());
+        }
+        producer = zookeepers.get(0);
+        producer.create(ROOT, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        for (int i = 0; i < watchers; i++) {
+            var zk = zookeepers.get(i % sessions);
+            zk.getChildren(ROOT, new ChildWatcher(zk));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        for (var zk : zookeepers) {
+            zk.close();
+        }
+        ensemble.close();
+    }
+
+    @Benchmark
+    public void createChild() throws KeeperException, InterruptedException {
+        delivered = new CountDownLatch(watchers);
+        child = producer.create(ROOT + "/child", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.EPHEMERAL_SEQUENTIAL);
+        delivered.await();
+    }
+
+    /**
+     * Keep the count of the children constant, the delete is delivered as well and the watchers are waited for.
+     */
+    @TearDown(Level.Invocation)
+    public void deleteChild() throws KeeperException, InterruptedException {
+        delivered = new CountDownLatch(watchers);
+        producer.delete(child, -1);
+        delivered.await();
+    }
+}
@@ -0,0 +1,73 @@
+package com.zookeeper.study.distributed.app;
+
+import com.zookeeper.study.benchmark.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Rounds per second of {@link SyncPrimitive.Barrier}, to compare with the round benchmark of
+ * {@link com.zookeeper.study.benchmark.DoubleBarrierBenchmark}. The barrier blocks, so every participant has a thread.
+ * Its leave waits for an empty root, so every round runs under a fresh root which is created before the round. It has
+ * no "ready" znode either: a participant which leaves early drops the count below the size for the participants which
+ * are still checking it in enter, so the participants wait for each other locally between entering and leaving.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyncPrimitiveBenchmark {
+    private static final String ROOT = "/benchmark-sync-primitive-";
+
+    @Param({"1", "3"})
+    int ensembleSize;
+
+    @Param({"2", "10"})
+    int participants;
+
+    private EmbeddedEnsemble ensemble;
+    private ExecutorService executorService;
+    private final List<SyncPrimitive.Barrier> barriers = new ArrayList<>();
+    private int round;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ensemble = EmbeddedEnsemble.start(ensembleSize);
+        executorService = Executors.newFixedThreadPool(participants);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        executorService.shutdown();
+        SyncPrimitive.close();
+        ensemble.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void createRound() {
+        var root = ROOT + round++;
+        barriers.clear();
+        for (int i = 0; i < participants; i++) {
+            barriers.add(new SyncPrimitive.Barrier(ensemble.connectString(), root, participants));
+        }
+    }
+
+    @Benchmark
+    public void round() throws Exception {
+        var rounds = new ArrayList<Future<Boolean>>(participants);
+        var entered = new CyclicBarrier(participants);
+        for (var barrier : barriers) {
+            rounds.add(executorService.submit(() -> {
+                barrier.enter("");
+                entered.await();
+                return barrier.leave("");
+            }));
+        }
+        for (var future : rounds) {
+            future.get();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.zookeeper.study.distributed.app;
+
+import com.zookeeper.study.benchmark.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Elements per second through {@link SyncPrimitive.Queue}: a batch is produced, then consumed by a range of elements
+ * at a time. A range of 1 is the one element per round-trip of the tutorial queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyncPrimitiveQueueBenchmark {
+    private static final int BATCH = 500;
+
+    @Param({"1", "3"})
+    int ensembleSize;
+
+    @Param({"1", "100"})
+    int range;
+
+    private EmbeddedEnsemble ensemble;
+    private SyncPrimitive.Queue queue;
+    private final List<byte[]> batch = new ArrayList<>(BATCH);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ensemble = EmbeddedEnsemble.start(ensembleSize);
+        queue = new SyncPrimitive.Queue(ensemble.connectString(), "/benchmark-queue");
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(new byte[16]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        SyncPrimitive.close();
+        ensemble.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void produceAndConsume() throws Exception {
+        queue.produce(batch);
+        for (int consumed = 0; consumed < BATCH; ) {
+            consumed += queue.consume(range).size();
+        }
+    }
+}
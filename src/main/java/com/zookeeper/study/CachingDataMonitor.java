@@ -0,0 +1,278 @@
+package com.zookeeper.study;
+
+import com.zookeeper.study.metrics.*;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link DataMonitor} for many znodes, either a set of paths or a whole subtree, with one instance and one session.
+ * The data and the stat of every existing znode are cached locally, reads are served from the cache without a round
+ * trip, and only the znodes whose watches fired are read again.
+ * <p>
+ * Like {@link DataMonitor} it never blocks, the callbacks and the listener run on the ZooKeeper event thread. The
+ * cache can be read from any thread.
+ */
+public class CachingDataMonitor implements Watcher {
+    ZooKeeper zk;
+    boolean dead;
+    CacheListener listener;
+    /**
+     * The paths which are watched even when they do not exist, the subtree root or the paths given to monitor.
+     */
+    private final Set<String> paths;
+    private final String root;
+    private final Set<String> tracked = ConcurrentHashMap.newKeySet();
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Counter retries = Metrics.instrumentation().counter("dataMonitor.retries");
+
+    public interface CacheListener {
+        /**
+         * The data of a znode has changed, or the znode has been created or deleted.
+         *
+         * @param path     the path of the znode.
+         * @param previous the cached entry before the change, null if the znode was not cached.
+         * @param current  the cached entry after the change, null if the znode has been deleted.
+         */
+        void changed(String path, Entry previous, Entry current);
+
+        /**
+         * The ZooKeeper session is no longer valid.
+         *
+         * @param rc the ZooKeeper reason code
+         */
+        void closing(int rc);
+    }
+
+    /**
+     * The cached data and stat of a znode. The data must not be modified.
+     */
+    public static final class Entry {
+        private final byte[] data;
+        private final Stat stat;
+
+        Entry(byte[] data, Stat stat) {
+            this.data = data;
+            this.stat = stat;
+        }
+
+        public byte[] data() {
+            return data;
+        }
+
+        public Stat stat() {
+            return stat;
+        }
+
+        public int version() {
+            return stat.getVersion();
+        }
+
+        public long mzxid() {
+            return stat.getMzxid();
+        }
+    }
+
+    /**
+     * Monitor a set of znodes.
+     *
+     * @param zk       zookeeper service. User have to close it manually.
+     * @param paths    the paths of the znodes, they do not have to exist.
+     * @param listener the listener of the changes.
+     */
+    public CachingDataMonitor(ZooKeeper zk, Collection<String> paths, CacheListener listener) {
+        this.zk = zk;
+        this.paths = Set.copyOf(paths);
+        this.root = null;
+        this.listener = listener;
+        for (var path : this.paths) {
+            refresh(path);
+        }
+    }
+
+    /**
+     * Monitor a subtree, the root and all its descendants.
+     *
+     * @param zk       zookeeper service. User have to close it manually.
+     * @param root     the path of the root of the subtree, it does not have to exist.
+     * @param listener the listener of the changes.
+     */
+    public CachingDataMonitor(ZooKeeper zk, String root, CacheListener listener) {
+        this.zk = zk;
+        this.paths = Set.of(root);
+        this.root = root;
+        this.listener = listener;
+        track(root);
+    }
+
+    /**
+     * Monitor again on a new session once the old one has expired, for example from a renewal listener of
+     * {@link SessionManager}. The cache is kept, every cached znode is read again and only the changes made while the
+     * znodes were not watched are told to the listener.
+     *
+     * @param zk the new session.
+     */
+    public void rearm(ZooKeeper zk) {
+        this.zk = zk;
+        dead = false;
+        tracked.clear();
+        for (var path : paths) {
+            discovered(path);
+        }
+        for (var path : cache.keySet()) {
+            discovered(path);
+        }
+    }
+
+    /**
+     * Get the cached entry of a znode.
+     *
+     * @param path the path of the znode.
+     * @return the entry, null if the znode does not exist or has not been read yet.
+     */
+    public Entry get(String path) {
+        return cache.get(path);
+    }
+
+    /**
+     * Get the paths of the cached znodes.
+     *
+     * @return a read only view of the paths.
+     */
+    public Set<String> cachedPaths() {
+        return Collections.unmodifiableSet(cache.keySet());
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        var path = event.getPath();
+        if (event.getType() == Event.EventType.None) {
+            // Watches are re-registered by the client after a reconnection, only the expiration is the end.
+            if (event.getState() == Event.KeeperState.Expired) {
+                close(Code.SessionExpired);
+            }
+            return;
+        }
+        if (dead || path == null) {
+            return;
+        }
+        switch (event.getType()) {
+            case NodeCreated -> discovered(path);
+            case NodeDataChanged -> refresh(path);
+            case NodeChildrenChanged -> listChildren(path);
+            case NodeDeleted -> removed(path);
+        }
+    }
+
+    private boolean inSubtree(String path) {
+        return root != null && (root.equals("/") || path.equals(root) || path.startsWith(root + '/'));
+    }
+
+    private void discovered(String path) {
+        if (inSubtree(path)) {
+            track(path);
+        } else {
+            refresh(path);
+        }
+    }
+
+    /**
+     * Start watching the data and the children of a znode of the subtree, once however many times it is listed.
+     */
+    private void track(String path) {
+        if (tracked.add(path)) {
+            refresh(path);
+            listChildren(path);
+        }
+    }
+
+    private void refresh(String path) {
+        zk.getData(path, this, (rc, nodePath, ctx, data, stat) -> {
+            if (ctx != zk) {
+                // a late result of an expired session, the monitor has been rearmed on a new one.
+                return;
+            }
+            switch (rc) {
+                case Code.Ok -> update(nodePath, new Entry(data, stat));
+                case Code.NoNode -> removed(nodePath);
+                case Code.SessionExpired, Code.NoAuth -> close(rc);
+                default -> {
+                    retries.increment();
+                    refresh(nodePath);
+                }
+            }
+        }, zk);
+    }
+
+    private void listChildren(String path) {
+        zk.getChildren(path, this, (rc, parent, ctx, children) -> {
+            if (ctx != zk) {
+                return;
+            }
+            switch (rc) {
+                case Code.Ok -> {
+                    for (var child : children) {
+                        track(parent.equals("/") ? "/" + child : parent + '/' + child);
+                    }
+                }
+                case Code.NoNode -> {
+                    // the deletion is handled by the data read.
+                }
+                case Code.SessionExpired, Code.NoAuth -> close(rc);
+                default -> {
+                    retries.increment();
+                    listChildren(parent);
+                }
+            }
+        }, zk);
+    }
+
+    /**
+     * Wait for a znode to be created again if it is one of the monitored paths. A znode inside the subtree is found
+     * again by the children watch of its parent.
+     */
+    private void removed(String path) {
+        tracked.remove(path);
+        var previous = cache.remove(path);
+        if (previous != null) {
+            listener.changed(path, previous, null);
+        }
+        if (paths.contains(path)) {
+            zk.exists(path, this, (rc, nodePath, ctx, stat) -> {
+                if (ctx != zk) {
+                    return;
+                }
+                switch (rc) {
+                    case Code.Ok -> discovered(nodePath);
+                    case Code.NoNode -> {
+                        // the watch reports the creation.
+                    }
+                    case Code.SessionExpired, Code.NoAuth -> close(rc);
+                    default -> {
+                        retries.increment();
+                        removed(nodePath);
+                    }
+                }
+            }, zk);
+        }
+    }
+
+    private void update(String path, Entry current) {
+        var previous = cache.get(path);
+        if (previous != null && previous.mzxid() == current.mzxid()) {
+            return;
+        }
+        cache.put(path, current);
+        listener.changed(path, previous, current);
+    }
+
+    private void close(int rc) {
+        if (!dead) {
+            dead = true;
+            listener.closing(rc);
+        }
+    }
+}
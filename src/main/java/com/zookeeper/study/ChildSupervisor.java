@@ -0,0 +1,131 @@
+package com.zookeeper.study;
+
+import java.io.*;
+import java.time.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the child process of {@link Executor} and replaces it when the config changes.
+ * <p>
+ * Without a readiness probe the old child is stopped before the new one starts. With a probe the new child starts
+ * beside the old one, and the old one is only stopped once the new one is ready, so the service is not down while the
+ * new child starts. If the new child is not ready in time it is stopped and the old one keeps running.
+ * <p>
+ * The methods block until the swap is done, they must not be called on the ZooKeeper event thread.
+ */
+public class ChildSupervisor implements AutoCloseable {
+    private final String[] exec;
+    private final OutputPump pump;
+    private final ReadinessProbe probe;
+    private final Duration readyTimeout;
+    private final Duration gracePeriod;
+    private Process child;
+
+    /**
+     * Create a supervisor which stops the old child before starting the new one.
+     *
+     * @param exec        the program and its args.
+     * @param pump        the pump of the output of the children.
+     * @param gracePeriod how long a child may take to exit before it is killed.
+     */
+    public ChildSupervisor(String[] exec, OutputPump pump, Duration gracePeriod) {
+        this(exec, pump, null, null, gracePeriod);
+    }
+
+    /**
+     * Create a supervisor which swaps the children once the new one is ready.
+     *
+     * @param exec         the program and its args.
+     * @param pump         the pump of the output of the children.
+     * @param probe        the readiness probe of the new child, null to stop the old child first.
+     * @param readyTimeout how long the new child may take to be ready.
+     * @param gracePeriod  how long a child may take to exit before it is killed.
+     */
+    public ChildSupervisor(String[] exec, OutputPump pump, ReadinessProbe probe, Duration readyTimeout,
+                           Duration gracePeriod) {
+        this.exec = exec;
+        this.pump = pump;
+        this.probe = probe;
+        this.readyTimeout = readyTimeout;
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * Check if a child is running.
+     *
+     * @return true if a child is running.
+     */
+    public synchronized boolean isRunning() {
+        return child != null && child.isAlive();
+    }
+
+    /**
+     * Replace the running child, if any, with a new one.
+     *
+     * @throws IOException          If the new child can not be started.
+     * @throws InterruptedException If the thread is interrupted while waiting for the children.
+     */
+    public synchronized void restart() throws IOException, InterruptedException {
+        if (probe == null) {
+            stop();
+            System.out.println("Starting child");
+            child = pump.start(new ProcessBuilder(exec));
+            return;
+        }
+        System.out.println("Starting standby child");
+        var standby = probe.start(new ProcessBuilder(exec), pump);
+        if (!probe.awaitReady(standby, readyTimeout)) {
+            System.out.println("Standby child is not ready, keeping the running child");
+            terminate(standby);
+            return;
+        }
+        var old = child;
+        child = standby;
+        if (old != null) {
+            System.out.println("Standby child is ready, stopping the old child");
+            terminate(old);
+        }
+    }
+
+    /**
+     * Stop the running child, if any.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting for the child.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (child != null) {
+            System.out.println("Stopping child");
+            terminate(child);
+            child = null;
+        }
+    }
+
+    private void terminate(Process process) throws InterruptedException {
+        // Process.destroy closes the pipes, the handle only signals the process, so its last words are still pumped.
+        process.toHandle().destroy();
+        if (!process.waitFor(gracePeriod.toMillis(), TimeUnit.MILLISECONDS)) {
+            System.out.println("Child did not exit in " + gracePeriod + ", killing it");
+            process.destroyForcibly().waitFor();
+        }
+        pump.drain(process);
+    }
+
+    /**
+     * Stop the running child, if any. If the thread is interrupted while the child exits, the child is killed without
+     * waiting and the thread is interrupted again.
+     */
+    @Override
+    public void close() {
+        try {
+            stop();
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                if (child != null) {
+                    child.destroyForcibly();
+                    child = null;
+                }
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.zookeeper.study;
+
+import com.zookeeper.study.metrics.*;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.KeeperException.Code;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tracks the children of a znode with one persistent recursive watch instead of a one-shot children watch which is
+ * set again by listing the children after every change. The watch reports the path of every created and deleted
+ * child, so the sorted set of the children is kept up to date in O(1) for each change, and the listener is told the
+ * changes instead of the whole list. No change is missed between an event and the next listing, since the watch stays
+ * set.
+ * <p>
+ * The children are listed once when the tracker starts, and again only after a reconnection, when the changes made
+ * while disconnected are told as the difference with the set. The events of the grandchildren are ignored.
+ * <p>
+ * Like {@link CachingDataMonitor} it never blocks, the callbacks and the listener run on the ZooKeeper event thread.
+ * The set can be read from any thread.
+ */
+public class ChildrenTracker implements Watcher {
+    ZooKeeper zk;
+    boolean dead;
+    ChildrenListener listener;
+    private final String parent;
+    private final String prefix;
+    private final NavigableSet<String> children = new ConcurrentSkipListSet<>();
+    private final Counter events = Metrics.instrumentation().counter("childrenTracker.events");
+    private final Counter listings = Metrics.instrumentation().counter("childrenTracker.listings");
+    private final Counter retries = Metrics.instrumentation().counter("childrenTracker.retries");
+    private boolean listed;
+    private boolean disconnected;
+
+    public interface ChildrenListener {
+        /**
+         * A child has been created.
+         *
+         * @param child the name of the child.
+         */
+        void added(String child);
+
+        /**
+         * A child has been deleted.
+         *
+         * @param child the name of the child.
+         */
+        void removed(String child);
+
+        /**
+         * The ZooKeeper session is no longer valid.
+         *
+         * @param rc the ZooKeeper reason code
+         */
+        void closing(int rc);
+    }
+
+    /**
+     * Track the children of a znode.
+     *
+     * @param zk       zookeeper service. User have to close it manually.
+     * @param parent   the path of the znode, it does not have to exist.
+     * @param listener the listener of the changes, it is told about the children which exist at the start too.
+     */
+    public ChildrenTracker(ZooKeeper zk, String parent, ChildrenListener listener) {
+        this.zk = zk;
+        this.parent = parent;
+        this.prefix = parent.equals("/") ? "/" : parent + '/';
+        this.listener = listener;
+        watch();
+    }
+
+    /**
+     * Track again on a new session once the old one has expired, for example from a renewal listener of
+     * {@link SessionManager}. The set is kept and only the changes made while the children were not watched are told
+     * to the listener.
+     *
+     * @param zk the new session.
+     */
+    public void rearm(ZooKeeper zk) {
+        this.zk = zk;
+        dead = false;
+        listed = false;
+        watch();
+    }
+
+    /**
+     * Get the children.
+     *
+     * @return a read only view of the names of the children, in order.
+     */
+    public NavigableSet<String> children() {
+        return Collections.unmodifiableNavigableSet(children);
+    }
+
+    /**
+     * Stop tracking the children.
+     */
+    public void close() {
+        dead = true;
+        zk.removeWatches(parent, this, WatcherType.Any, true, (rc, path, ctx) -> {
+            // the watch is gone either way once the session is.
+        }, null);
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None) {
+            switch (event.getState()) {
+                case Disconnected -> disconnected = true;
+                case SyncConnected -> {
+                    // the client sets the watch again, but the changes made while disconnected are not reported.
+                    if (disconnected && !dead) {
+                        disconnected = false;
+                        list();
+                    }
+                }
+                case Expired -> close(Code.SessionExpired);
+                default -> {
+                }
+            }
+            return;
+        }
+        var path = event.getPath();
+        if (dead || !listed || path == null || !path.startsWith(prefix) || path.indexOf('/', prefix.length()) >= 0) {
+            // the events before the first listing are included in it.
+            return;
+        }
+        events.increment();
+        var child = path.substring(prefix.length());
+        switch (event.getType()) {
+            case NodeCreated -> added(child);
+            case NodeDeleted -> removed(child);
+            default -> {
+            }
+        }
+    }
+
+    private void watch() {
+        zk.addWatch(parent, this, AddWatchMode.PERSISTENT_RECURSIVE, (rc, path, ctx) -> {
+            if (ctx != zk) {
+                // a late result of an expired session, the tracker has been rearmed on a new one.
+                return;
+            }
+            switch (rc) {
+                case Code.Ok -> list();
+                case Code.SessionExpired, Code.NoAuth -> close(rc);
+                default -> {
+                    retries.increment();
+                    watch();
+                }
+            }
+        }, zk);
+    }
+
+    /**
+     * List the children once the watch is set, and tell the differences with the set. The events which come before
+     * the result are for changes the listing already includes, the ones after it are applied to the listing.
+     */
+    private void list() {
+        listings.increment();
+        zk.getChildren(parent, false, (rc, path, ctx, listing) -> {
+            if (ctx != zk) {
+                return;
+            }
+            switch (rc) {
+                case Code.Ok, Code.NoNode -> {
+                    var current = rc == Code.Ok ? new HashSet<>(listing) : Set.<String>of();
+                    for (var child : List.copyOf(children)) {
+                        if (!current.contains(child)) {
+                            removed(child);
+                        }
+                    }
+                    for (var child : current) {
+                        added(child);
+                    }
+                    listed = true;
+                }
+                case Code.SessionExpired, Code.NoAuth -> close(rc);
+                default -> {
+                    retries.increment();
+                    list();
+                }
+            }
+        }, zk);
+    }
+
+    private void added(String child) {
+        if (children.add(child)) {
+            listener.added(child);
+        }
+    }
+
+    private void removed(String child) {
+        if (children.remove(child)) {
+            listener.removed(child);
+        }
+    }
+
+    private void close(int rc) {
+        if (!dead) {
+            dead = true;
+            listener.closing(rc);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.zookeeper.study;
+
+import com.zookeeper.study.metrics.*;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.KeeperException.Code;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Reads the chunks of a {@link ChunkedPayload} config. The chunks of the last config are kept, only the chunks whose
+ * hashes are new are read from ZooKeeper, all of them at once with the asynchronous API. The chunks of a config are
+ * passed on as they are, to {@link ConfigMaterializer#materialize(List)} for example, without being copied into one
+ * array.
+ * <p>
+ * It blocks until the chunks are read, do not call it on the ZooKeeper event thread, but on the dispatcher of
+ * {@link CoalescingListener} for example. A lost connection or an expired session is retried on the current session of
+ * the supplier, for 30 seconds.
+ */
+public class ChunkFetcher {
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private static final int MAX_ATTEMPTS = 300;
+    private final Supplier<ZooKeeper> sessions;
+    private final String chunksPath;
+    private final ChunkedPayload format;
+    private Map<String, byte[]> cache = Map.of();
+    private final Counter fetched = Metrics.instrumentation().counter("chunkFetcher.fetched");
+    private final Counter fetchedBytes = Metrics.instrumentation().counter("chunkFetcher.fetchedBytes");
+    private final Counter cached = Metrics.instrumentation().counter("chunkFetcher.cached");
+    private final Counter retries = Metrics.instrumentation().counter("chunkFetcher.retries");
+
+    /**
+     * Create a fetcher.
+     *
+     * @param sessions the current session, for example {@link SessionManager#session()}.
+     * @param znode    the path of the manifest's znode.
+     * @param format   the format the config is written in.
+     */
+    public ChunkFetcher(Supplier<ZooKeeper> sessions, String znode, ChunkedPayload format) {
+        this.sessions = sessions;
+        this.chunksPath = ChunkedPayload.chunksPath(znode);
+        this.format = format;
+    }
+
+    /**
+     * Get the config of a manifest.
+     *
+     * @param manifest the manifest.
+     * @return the chunks of the config, in order.
+     * @throws KeeperException.NoNodeException If a chunk has been deleted, a newer manifest replaces this one then.
+     * @throws KeeperException                 If a chunk can not be read.
+     * @throws IOException                     If a chunk is corrupted or the dictionary is not the writer's.
+     * @throws InterruptedException            If the thread is interrupted while waiting.
+     */
+    public synchronized List<byte[]> fetch(ChunkedPayload.Manifest manifest)
+            throws KeeperException, IOException, InterruptedException {
+        format.checkDictionary(manifest);
+        var contents = new HashMap<String, byte[]>();
+        List<ChunkedPayload.Chunk> missing = new ArrayList<>();
+        for (var chunk : manifest.chunks()) {
+            var name = chunk.name();
+            var content = cache.get(name);
+            if (content != null) {
+                cached.increment();
+                contents.put(name, content);
+            } else if (!contents.containsKey(name)) {
+                contents.put(name, null);
+                missing.add(chunk);
+            }
+        }
+        for (int attempt = 1; !missing.isEmpty(); attempt++) {
+            missing = read(missing, contents);
+            if (!missing.isEmpty()) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw KeeperException.create(Code.CONNECTIONLOSS, chunksPath);
+                }
+                retries.increment();
+                Thread.sleep(RETRY_DELAY_MILLIS);
+            }
+        }
+        cache = contents;
+        var chunks = new ArrayList<byte[]>(manifest.chunks().size());
+        for (var chunk : manifest.chunks()) {
+            chunks.add(contents.get(chunk.name()));
+        }
+        return chunks;
+    }
+
+    /**
+     * Read the chunks at once, and decompress the ones which have been read.
+     *
+     * @return the chunks to read again, after a lost connection or an expired session.
+     */
+    private List<ChunkedPayload.Chunk> read(List<ChunkedPayload.Chunk> chunks, Map<String, byte[]> contents)
+            throws KeeperException, IOException, InterruptedException {
+        var zk = sessions.get();
+        var results = new ArrayList<CompletableFuture<byte[]>>(chunks.size());
+        for (var chunk : chunks) {
+            var result = new CompletableFuture<byte[]>();
+            results.add(result);
+            zk.getData(chunksPath + '/' + chunk.name(), false, (rc, path, ctx, data, stat) -> {
+                if (rc == Code.Ok) {
+                    result.complete(data);
+                } else {
+                    result.completeExceptionally(KeeperException.create(Code.get(rc), path));
+                }
+            }, null);
+        }
+        var again = new ArrayList<ChunkedPayload.Chunk>();
+        for (int i = 0; i < chunks.size(); i++) {
+            var chunk = chunks.get(i);
+            byte[] data;
+            try {
+                data = results.get(i).get();
+            } catch (ExecutionException e) {
+                var cause = (KeeperException) e.getCause();
+                if (cause.code() == Code.CONNECTIONLOSS || cause.code() == Code.SESSIONEXPIRED) {
+                    again.add(chunk);
+                    continue;
+                }
+                throw cause;
+            }
+            fetched.increment();
+            fetchedBytes.add(data.length);
+            contents.put(chunk.name(), format.decompress(data, chunk));
+        }
+        return again;
+    }
+}
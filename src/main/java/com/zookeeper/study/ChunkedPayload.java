@@ -0,0 +1,314 @@
+package com.zookeeper.study;
+
+import java.io.*;
+import java.nio.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * The format of a config which is split into compressed chunks, for configs larger than a znode can hold and for
+ * pushes to many hosts. The znode the {@link DataMonitor} watches holds a manifest, the list of the chunks with the
+ * SHA-256 hash of their content, and every chunk is a znode of its own under {@link #chunksPath(String)}, named by its
+ * hash. A host keeps the chunks it has and only reads the ones whose hashes it has not seen, so a change which touches
+ * one part of the config costs one chunk instead of the whole config.
+ * <p>
+ * The config is cut where its content says, with a rolling hash over the last bytes, instead of at fixed offsets. An
+ * edit only changes the chunks around it, the cuts after it are at the same content as before, even if the edit has
+ * moved them.
+ * <p>
+ * The chunks are compressed with DEFLATE, optionally with a preset dictionary of the strings the configs have in
+ * common, which makes small chunks compress as well as large ones. The manifest holds the ID of the dictionary, the
+ * writer and the readers must use the same one.
+ */
+public final class ChunkedPayload {
+    static final int MAGIC = 0x5a4b4350;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 13;
+    private static final int HASH_LENGTH = 32;
+    private static final String HASH_ALGORITHM = "SHA-256";
+    static final int MIN_CHUNK_LENGTH = 16 * 1024;
+    static final int MAX_CHUNK_LENGTH = 256 * 1024;
+    /**
+     * A cut has a chance of one in 64 KiB after the minimal length, so the chunks are 80 KiB on average.
+     */
+    private static final long CUT_MASK = (1 << 16) - 1;
+    /**
+     * The random values of the bytes for the rolling hash. The seed is fixed, every writer cuts the same content at the
+     * same places.
+     */
+    private static final long[] GEAR = new Random(0x5a4b).longs(256).toArray();
+    private final byte[] dictionary;
+    private final int dictionaryId;
+
+    /**
+     * Create the format without a dictionary.
+     */
+    public ChunkedPayload() {
+        this(null);
+    }
+
+    /**
+     * Create the format with a preset dictionary.
+     *
+     * @param dictionary the strings which are likely in the configs, the most common last. Null for no dictionary.
+     */
+    public ChunkedPayload(byte[] dictionary) {
+        this.dictionary = dictionary;
+        if (dictionary == null) {
+            dictionaryId = 0;
+        } else {
+            var adler = new Adler32();
+            adler.update(dictionary);
+            dictionaryId = (int) adler.getValue();
+        }
+    }
+
+    /**
+     * A chunk of a config.
+     */
+    public static final class Chunk {
+        private final byte[] hash;
+        private final int length;
+
+        Chunk(byte[] hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        /**
+         * Get the name of the chunk's znode.
+         *
+         * @return the hash of the content in hex.
+         */
+        public String name() {
+            var name = new StringBuilder(HASH_LENGTH * 2);
+            for (var b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        }
+
+        /**
+         * Get the length of the chunk.
+         *
+         * @return the length of the content before it is compressed.
+         */
+        public int length() {
+            return length;
+        }
+    }
+
+    /**
+     * The list of the chunks of a config, in order.
+     */
+    public static final class Manifest {
+        private final int dictionaryId;
+        private final List<Chunk> chunks;
+
+        Manifest(int dictionaryId, List<Chunk> chunks) {
+            this.dictionaryId = dictionaryId;
+            this.chunks = chunks;
+        }
+
+        /**
+         * Check if the data of a znode is a manifest, instead of a config in one piece.
+         *
+         * @param data the data of the znode.
+         * @return true if it is a manifest.
+         */
+        public static boolean isManifest(byte[] data) {
+            return data != null && data.length >= HEADER_LENGTH && ByteBuffer.wrap(data).getInt() == MAGIC
+                    && data[4] == FORMAT_VERSION;
+        }
+
+        /**
+         * Read a manifest.
+         *
+         * @param data the data of the manifest's znode.
+         * @return the manifest.
+         * @throws IOException If the data is not a manifest, or the length of a chunk is not one a chunk can have.
+         */
+        public static Manifest parse(byte[] data) throws IOException {
+            if (!isManifest(data)) {
+                throw new IOException("Not a manifest of format " + FORMAT_VERSION + '.');
+            }
+            var buffer = ByteBuffer.wrap(data, 5, data.length - 5);
+            var dictionaryId = buffer.getInt();
+            var count = buffer.getInt();
+            if (count < 0 || buffer.remaining() != count * (Integer.BYTES + HASH_LENGTH)) {
+                throw new IOException("The manifest of " + count + " chunks has " + data.length + " bytes.");
+            }
+            var chunks = new ArrayList<Chunk>(count);
+            for (int i = 0; i < count; i++) {
+                var length = buffer.getInt();
+                // the length sizes the buffer the chunk is decompressed into.
+                if (length < 1 || length > MAX_CHUNK_LENGTH) {
+                    throw new IOException("The chunk " + i + " of the manifest has " + length
+                            + " bytes, not within 1 and " + MAX_CHUNK_LENGTH + '.');
+                }
+                var hash = new byte[HASH_LENGTH];
+                buffer.get(hash);
+                chunks.add(new Chunk(hash, length));
+            }
+            return new Manifest(dictionaryId, Collections.unmodifiableList(chunks));
+        }
+
+        /**
+         * Write the manifest.
+         *
+         * @return the data of the manifest's znode.
+         */
+        public byte[] toBytes() {
+            var buffer = ByteBuffer.allocate(HEADER_LENGTH + chunks.size() * (Integer.BYTES + HASH_LENGTH));
+            buffer.putInt(MAGIC).put(FORMAT_VERSION).putInt(dictionaryId).putInt(chunks.size());
+            for (var chunk : chunks) {
+                buffer.putInt(chunk.length).put(chunk.hash);
+            }
+            return buffer.array();
+        }
+
+        public List<Chunk> chunks() {
+            return chunks;
+        }
+    }
+
+    /**
+     * Get the path of the znode the chunks of a config are under. It is a sibling of the manifest's znode, so the
+     * chunks can be written before the manifest is created.
+     *
+     * @param znode the path of the manifest's znode.
+     * @return the path of the parent of the chunks.
+     */
+    public static String chunksPath(String znode) {
+        return znode + ".chunks";
+    }
+
+    /**
+     * Cut a config into chunks. A chunk ends where the rolling hash of its last bytes matches the mask, but it is never
+     * shorter than {@link #MIN_CHUNK_LENGTH} nor longer than {@link #MAX_CHUNK_LENGTH}.
+     *
+     * @param config the config.
+     * @return the chunks, in order.
+     */
+    public static List<byte[]> split(byte[] config) {
+        var chunks = new ArrayList<byte[]>();
+        var start = 0;
+        while (start < config.length) {
+            var end = Math.min(config.length, start + MAX_CHUNK_LENGTH);
+            var hash = 0L;
+            for (int i = start + MIN_CHUNK_LENGTH; i < end; i++) {
+                hash = (hash << 1) + GEAR[config[i] & 0xff];
+                if ((hash & CUT_MASK) == 0) {
+                    end = i + 1;
+                    break;
+                }
+            }
+            chunks.add(Arrays.copyOfRange(config, start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Make the manifest of the chunks of a config.
+     *
+     * @param chunks the chunks, in order.
+     * @return the manifest.
+     */
+    public Manifest manifestOf(List<byte[]> chunks) {
+        var entries = new ArrayList<Chunk>(chunks.size());
+        for (var chunk : chunks) {
+            entries.add(new Chunk(hash(chunk), chunk.length));
+        }
+        return new Manifest(dictionaryId, Collections.unmodifiableList(entries));
+    }
+
+    /**
+     * Compress a chunk.
+     *
+     * @param chunk the content of the chunk.
+     * @return the data of the chunk's znode.
+     */
+    public byte[] compress(byte[] chunk) {
+        var deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(chunk);
+            deflater.finish();
+            var compressed = new byte[chunk.length + chunk.length / 1000 + 64];
+            var length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            return Arrays.copyOf(compressed, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress a chunk and check it is the content the manifest lists.
+     *
+     * @param compressed the data of the chunk's znode.
+     * @param chunk      the chunk in the manifest.
+     * @return the content of the chunk.
+     * @throws IOException If the data is not the chunk, or the dictionary is not the one of the writer.
+     */
+    public byte[] decompress(byte[] compressed, Chunk chunk) throws IOException {
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            var content = new byte[chunk.length];
+            var length = 0;
+            while (!inflater.finished()) {
+                var inflated = inflater.inflate(content, length, content.length - length);
+                length += inflated;
+                if (inflated > 0) {
+                    continue;
+                }
+                if (inflater.needsDictionary() && dictionary != null && inflater.getAdler() == dictionaryId) {
+                    inflater.setDictionary(dictionary);
+                } else if (!inflater.finished()) {
+                    throw new IOException("The chunk " + chunk.name() + " can not be decompressed"
+                            + (inflater.needsDictionary() ? " without its dictionary." : '.'));
+                }
+            }
+            if (length != chunk.length || !MessageDigest.isEqual(hash(content), chunk.hash)) {
+                throw new IOException("The content of the chunk " + chunk.name() + " does not match its hash.");
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("The chunk " + chunk.name() + " is corrupted.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Check the manifest is written with the dictionary of this format.
+     *
+     * @param manifest the manifest.
+     * @throws IOException If the writer used another dictionary.
+     */
+    void checkDictionary(Manifest manifest) throws IOException {
+        if (manifest.dictionaryId != dictionaryId) {
+            throw new IOException("The config is compressed with the dictionary " +
+                    Integer.toHexString(manifest.dictionaryId) + ", not " + Integer.toHexString(dictionaryId) + '.');
+        }
+    }
+
+    private static byte[] hash(byte[] content) {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM).digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.zookeeper.study;
+
+import com.zookeeper.study.metrics.*;
+import org.apache.logging.log4j.*;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.KeeperException.Code;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Pushes a config in the {@link ChunkedPayload} format. Only the chunks which are not in ZooKeeper yet are written,
+ * all of them at once with the asynchronous API, then the manifest is written, and the chunks the new manifest does
+ * not list are deleted last. A host which reads the manifest finds every chunk it lists, unless a newer push has
+ * deleted it, and then the host is told about the newer manifest.
+ * <p>
+ * One config should be pushed by one publisher at a time, a push deletes the chunks of a concurrent push.
+ */
+public class ChunkedPayloadPublisher {
+    private static final Logger logger = LogManager.getLogger(ChunkedPayloadPublisher.class);
+    private static final int SESSION_TIMEOUT = 10 * 1000;
+    private final ZooKeeper zk;
+    private final String znode;
+    private final String chunksPath;
+    private final ChunkedPayload format;
+    private final Counter written = Metrics.instrumentation().counter("chunkedPayload.written");
+    private final Counter writtenBytes = Metrics.instrumentation().counter("chunkedPayload.writtenBytes");
+    private final Counter deleted = Metrics.instrumentation().counter("chunkedPayload.deleted");
+
+    /**
+     * Create a publisher.
+     *
+     * @param zk     zookeeper service. User have to close it manually.
+     * @param znode  the path of the manifest's znode, the one the hosts watch. It and its parents are created if they
+     *               are missing.
+     * @param format the format of the config.
+     */
+    public ChunkedPayloadPublisher(ZooKeeper zk, String znode, ChunkedPayload format) {
+        this.zk = zk;
+        this.znode = znode;
+        this.chunksPath = ChunkedPayload.chunksPath(znode);
+        this.format = format;
+    }
+
+    /**
+     * Push a config.
+     *
+     * @param config the config.
+     * @return the count of chunks written, the others were already in ZooKeeper.
+     * @throws KeeperException      If the config can not be written.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public int publish(byte[] config) throws KeeperException, InterruptedException {
+        var chunks = ChunkedPayload.split(config);
+        var manifest = format.manifestOf(chunks);
+        createWithParents(chunksPath);
+        var existing = new HashSet<>(zk.getChildren(chunksPath, false));
+        var listed = new HashSet<String>();
+        var results = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < chunks.size(); i++) {
+            var name = manifest.chunks().get(i).name();
+            if (!listed.add(name) || existing.contains(name)) {
+                continue;
+            }
+            var data = format.compress(chunks.get(i));
+            writtenBytes.add(data.length);
+            results.add(run(callback -> zk.create(chunksPath + '/' + name, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT, (rc, path, ctx, created) -> callback.processResult(rc, path, ctx), null),
+                    Code.NODEEXISTS));
+        }
+        await(results);
+        var created = results.size();
+        written.add(created);
+        try {
+            zk.setData(znode, manifest.toBytes(), -1);
+        } catch (KeeperException.NoNodeException e) {
+            createWithParents(znode.substring(0, znode.lastIndexOf('/')));
+            zk.create(znode, manifest.toBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        logger.info("Pushed {} bytes in {} chunks to {}, {} of them new.", config.length, chunks.size(), znode,
+                created);
+        results.clear();
+        for (var name : existing) {
+            if (!listed.contains(name)) {
+                results.add(run(callback -> zk.delete(chunksPath + '/' + name, -1, callback, null), Code.NONODE));
+            }
+        }
+        await(results);
+        deleted.add(results.size());
+        return created;
+    }
+
+    private void createWithParents(String path) throws KeeperException, InterruptedException {
+        if (path.isEmpty() || zk.exists(path, false) != null) {
+            return;
+        }
+        createWithParents(path.substring(0, path.lastIndexOf('/')));
+        try {
+            zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // another publisher created it first.
+        }
+    }
+
+    private interface Request {
+        void send(AsyncCallback.VoidCallback callback);
+    }
+
+    /**
+     * Send a request, a result of the tolerated code counts as done.
+     */
+    private static CompletableFuture<Void> run(Request request, Code tolerated) {
+        var result = new CompletableFuture<Void>();
+        request.send((rc, path, ctx) -> {
+            if (rc == Code.OK.intValue() || rc == tolerated.intValue()) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(KeeperException.create(Code.get(rc), path));
+            }
+        });
+        return result;
+    }
+
+    private static void await(List<CompletableFuture<Void>> results) throws KeeperException, InterruptedException {
+        for (var result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                throw (KeeperException) e.getCause();
+            }
+        }
+    }
+
+    /**
+     * @param args "--dictionary path" to compress with a preset dictionary, then the znode and the file of the
+     *             config. The ensemble is the one of zookeeper.properties.
+     */
+    public static void main(String[] args) {
+        byte[] dictionary = null;
+        int offset = 0;
+        try {
+            if (args.length > 1 && args[0].equals("--dictionary")) {
+                dictionary = Files.readAllBytes(Paths.get(args[1]));
+                offset = 2;
+            }
+            if (args.length != offset + 2) {
+                System.err.println("USAGE: ChunkedPayloadPublisher [--dictionary path] znode filename");
+                System.exit(2);
+            }
+            var config = Files.readAllBytes(Paths.get(args[offset + 1]));
+            try (var sessions = new SessionManager(SessionManager.hostsFromProperties(), SESSION_TIMEOUT)) {
+                var zk = sessions.awaitConnected(SessionManager.CONNECT_TIMEOUT);
+                new ChunkedPayloadPublisher(zk, args[offset], new ChunkedPayload(dictionary)).publish(config);
+            }
+        } catch (IOException | KeeperException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.zookeeper.study;
+
+import com.zookeeper.study.metrics.*;
+
+import java.time.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link DataMonitor.DataMonitorListener} which coalesces bursts of changes. A change is passed on once no other
+ * change has come for the debounce window, only the latest data is passed on. A steady stream of changes still
+ * passes the latest data on every ten windows, so the listener never starves.
+ * <p>
+ * The listener is called on a thread of its own instead of the ZooKeeper event thread, it can block, for example to
+ * restart a process, without stalling the session.
+ */
+public class CoalescingListener implements DataMonitor.DataMonitorListener, AutoCloseable {
+    private static final int MAX_DELAY_WINDOWS = 10;
+    private final DataMonitor.DataMonitorListener listener;
+    private final long windowNanos;
+    private final ScheduledExecutorService dispatcher;
+    private final Counter coalesced = Metrics.instrumentation().counter("dataMonitor.coalesced");
+    private byte[] pendingData;
+    private boolean pending;
+    private long firstPendingNanos;
+    private ScheduledFuture<?> flush;
+
+    /**
+     * Create a coalescing listener.
+     *
+     * @param listener the listener which gets the coalesced changes.
+     * @param window   the debounce window.
+     */
+    public CoalescingListener(DataMonitor.DataMonitorListener listener, Duration window) {
+        this.listener = listener;
+        this.windowNanos = window.toNanos();
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "data-monitor-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public synchronized void exists(byte[] data) {
+        var now = System.nanoTime();
+        if (pending) {
+            coalesced.increment();
+        } else {
+            pending = true;
+            firstPendingNanos = now;
+        }
+        pendingData = data;
+        if (flush != null) {
+            flush.cancel(false);
+        }
+        var delay = Math.min(windowNanos, Math.max(0, firstPendingNanos + windowNanos * MAX_DELAY_WINDOWS - now));
+        flush = dispatcher.schedule(this::flush, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void flush() {
+        byte[] data;
+        synchronized (this) {
+            if (!pending) {
+                // a flush which was cancelled too late has passed the data on already.
+                return;
+            }
+            data = pendingData;
+            pending = false;
+            pendingData = null;
+            flush = null;
+        }
+        listener.exists(data);
+    }
+
+    @Override
+    public void closing(int rc) {
+        dispatcher.execute(() -> {
+            flush();
+            listener.closing(rc);
+        });
+    }
+
+    /**
+     * Stop the dispatcher thread, a pending change is dropped.
+     */
+    @Override
+    public void close() {
+        dispatcher.shutdownNow();
+    }
+}
@@ -0,0 +1,143 @@
+package com.zookeeper.study;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Writes the config a child process reads. The file is replaced atomically, a reader sees either the whole old config
+ * or the whole new one, never a half written file. A config with the same content as the file is not written again.
+ * <p>
+ * The new config is written to a file next to the config and renamed over it, the file system must support an atomic
+ * rename there. The directory is synced after the rename, so the new config survives a crash once it is written, on
+ * the platforms which can open a directory. A new file is created with the permissions of the umask, as the child's
+ * config always was, and a replaced file keeps its permissions.
+ */
+public class ConfigMaterializer {
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private final Path file;
+    private byte[] digest;
+
+    /**
+     * Create a materializer of a file.
+     *
+     * @param file the file of the config, its directory must exist.
+     */
+    public ConfigMaterializer(Path file) {
+        this.file = file.toAbsolutePath();
+    }
+
+    /**
+     * Write the config if its content is different from the file.
+     *
+     * @param data the config.
+     * @return true if the file has been written, false if it already has the content.
+     * @throws IOException If the file can not be written.
+     */
+    public boolean materialize(byte[] data) throws IOException {
+        return materialize(List.of(data));
+    }
+
+    /**
+     * Write a config which is split in chunks, for example the data of several znodes, if its content is different
+     * from the file. The chunks are written in order with one gathering write, they are never copied into one array.
+     *
+     * @param chunks the chunks of the config.
+     * @return true if the file has been written, false if it already has the content.
+     * @throws IOException If the file can not be written.
+     */
+    public synchronized boolean materialize(List<byte[]> chunks) throws IOException {
+        var messageDigest = newDigest();
+        var buffers = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            messageDigest.update(chunks.get(i));
+            buffers[i] = ByteBuffer.wrap(chunks.get(i));
+        }
+        var newDigest = messageDigest.digest();
+        if (digest == null && Files.exists(file)) {
+            // the file may be left by a previous run.
+            digest = digestOf(file);
+        }
+        if (MessageDigest.isEqual(digest, newDigest)) {
+            return false;
+        }
+        var temp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            // unlike a temporary file, which only its owner can read, the new file follows the umask.
+            try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (hasRemaining(buffers)) {
+                    channel.write(buffers);
+                }
+                channel.force(true);
+            }
+            keepPermissions(temp);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        digest = newDigest;
+        return true;
+    }
+
+    private void keepPermissions(Path temp) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(file));
+        } catch (UnsupportedOperationException e) {
+            // not a POSIX file system, the new file has the default permissions of the directory.
+        }
+    }
+
+    /**
+     * Sync the directory, the rename is only durable once the directory entry is.
+     */
+    private void syncDirectory() throws IOException {
+        FileChannel directory;
+        try {
+            directory = FileChannel.open(file.getParent(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // a directory can not be opened on every platform, Windows for example.
+            return;
+        }
+        try (directory) {
+            directory.force(true);
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (var buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] digestOf(Path path) throws IOException {
+        var messageDigest = newDigest();
+        var buffer = ByteBuffer.allocate(64 * 1024);
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                messageDigest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return messageDigest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,22 +1,38 @@
 package com.zookeeper.study;
 
+import com.zookeeper.study.metrics.*;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.*;
 import org.apache.zookeeper.KeeperException.Code;
 
-import java.util.*;
-
 /**
  * Conventionally, ZooKeeper applications are broken into two units, one which maintains the connection,
  * and the other which monitors data. In this application. This class monitors the data in the ZooKeeper tree.
+ * <p>
+ * It never blocks: the callbacks run on the ZooKeeper event thread, a blocking read there would stall every other
+ * watcher and callback of the session.
  */
-public class DataMonitor implements Watcher, AsyncCallback.StatCallback {
+public class DataMonitor implements Watcher, AsyncCallback.StatCallback, AsyncCallback.DataCallback {
+    private static final long NO_NODE = -1;
     ZooKeeper zk;
     String znode;
     Watcher chainedWatcher;
     boolean dead;
     DataMonitorListener listener;
-    byte[] prevData;
+    /**
+     * The zxid of the last modification reported to the listener, {@link #NO_NODE} if the node did not exist. Every
+     * write to the node gives it a new mzxid, also when it is deleted and created again, so comparing it is enough to
+     * detect a change without comparing the data.
+     */
+    long prevMzxid = NO_NODE;
+    /**
+     * If an exists and getData chain is in flight, and if another change has been notified meanwhile. A burst of
+     * changes needs one more read after the one in flight, not a read for each of them.
+     */
+    private boolean refreshing;
+    private boolean refreshPending;
+    private final Counter retries = Metrics.instrumentation().counter("dataMonitor.retries");
+    private final Counter skippedReads = Metrics.instrumentation().counter("dataMonitor.skippedReads");
 
     public interface DataMonitorListener {
         /**
@@ -47,11 +63,48 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback {
 //        }
         // Get things started by checking if the node exists. We are going
         // to be completely event driven
-        zk.exists(znode, true, this, null);
+        refresh();
+    }
+
+    /**
+     * Monitor again on a new session once the old one has expired, for example from a renewal listener of
+     * {@link SessionManager}. The last seen version is kept, the listener is only told if the node has changed while
+     * the node was not watched.
+     *
+     * @param zk the new session.
+     */
+    public void rearm(ZooKeeper zk) {
+        this.zk = zk;
+        dead = false;
+        refreshing = false;
+        refreshPending = false;
+        refresh();
+    }
+
+    private void refresh() {
+        if (refreshing) {
+            refreshPending = true;
+            skippedReads.increment();
+            return;
+        }
+        refreshing = true;
+        zk.exists(znode, true, this, zk);
+    }
+
+    private void refreshed() {
+        refreshing = false;
+        if (refreshPending && !dead) {
+            refreshPending = false;
+            refresh();
+        }
     }
 
     @Override
     public void processResult(int rc, String path, Object ctx, Stat stat) {
+        if (ctx != zk) {
+            // a late result of an expired session, the monitor has been rearmed on a new one.
+            return;
+        }
         boolean exists;
         // Retry errors
         switch (rc) {
@@ -63,28 +116,49 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback {
                 return;
             }
             default -> {
-                zk.exists(znode, true, this, null);
+                retries.increment();
+                zk.exists(znode, true, this, zk);
                 return;
             }
         }
 
-        byte[] b = null;
         if (exists) {
-            try {
-                b = zk.getData(znode, false, null);
-            } catch (KeeperException e) {
-                // We don't need to worry about recovering now. The watch
-                // callbacks will kick off any exception handling
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                return;
-            }
+            // Read the data and set the data watch in the same call, a change after the read always fires the watch.
+            zk.getData(znode, true, this, zk);
+            return;
         }
-        if ((b == null && b != prevData)
-                || (b != null && !Arrays.equals(prevData, b))) {
-            listener.exists(b);
-            prevData = b;
+        if (prevMzxid != NO_NODE) {
+            prevMzxid = NO_NODE;
+            listener.exists(null);
+        }
+        refreshed();
+    }
+
+    @Override
+    public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+        if (ctx != zk) {
+            // a late result of an expired session, the monitor has been rearmed on a new one.
+            return;
+        }
+        switch (rc) {
+            case Code.Ok -> {
+                if (stat.getMzxid() != prevMzxid) {
+                    prevMzxid = stat.getMzxid();
+                    listener.exists(data);
+                }
+                refreshed();
+            }
+            case Code.SessionExpired, Code.NoAuth -> {
+                dead = true;
+                listener.closing(rc);
+            }
+            default -> {
+                // The node may be deleted between the two reads, start over so the existence watch is set again.
+                if (rc != Code.NoNode) {
+                    retries.increment();
+                }
+                zk.exists(znode, true, this, zk);
+            }
         }
     }
 
@@ -110,7 +184,7 @@ public class DataMonitor implements Watcher, AsyncCallback.StatCallback {
         } else {
             if (path != null && path.equals(znode)) {
                 // Something has changed on the node, let's find out
-                zk.exists(znode, true, this, null);
+                refresh();
             }
         }
         if (chainedWatcher != null) {
@@ -3,57 +3,69 @@ package com.zookeeper.study;
 import org.apache.zookeeper.*;
 
 import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
 
 /**
  * Conventionally, ZooKeeper applications are broken into two units, one which maintains the connection,
  * and the other which monitors data. This class maintains the ZooKeeper connection.
  */
 public class Executor implements Watcher, Runnable, DataMonitor.DataMonitorListener {
+    /**
+     * A config push is usually a burst of writes, the child is restarted once for the last of them.
+     */
+    static final Duration DEBOUNCE_WINDOW = Duration.ofMillis(500);
+    static final Duration READY_TIMEOUT = Duration.ofSeconds(30);
+    static final Duration GRACE_PERIOD = Duration.ofSeconds(10);
     String znode;
     DataMonitor dm;
+    SessionManager sessions;
     ZooKeeper zk;
     String filename;
-    String[] exec;
-    Process child;
-
-    static class StreamWriter extends Thread {
-        OutputStream os;
-
-        InputStream is;
+    ConfigMaterializer materializer;
+    ChunkFetcher fetcher;
+    ChildSupervisor supervisor;
+    boolean closed;
 
-        StreamWriter(InputStream is, OutputStream os) {
-            this.is = is;
-            this.os = os;
-            start();
-        }
-
-        public void run() {
-            byte[] b = new byte[80];
-            int rc;
-            try {
-                while ((rc = is.read(b)) > 0) {
-                    os.write(b, 0, rc);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    public Executor(String hostPort, String znode, String filename, String[] exec)
+        throws IOException {
+        this(hostPort, znode, filename, DEBOUNCE_WINDOW, new ChildSupervisor(exec, new OutputPump(null), GRACE_PERIOD));
+    }
 
-        }
+    public Executor(String hostPort, String znode, String filename, Duration debounceWindow,
+                    ChildSupervisor supervisor) throws IOException {
+        this(hostPort, znode, filename, debounceWindow, supervisor, new ChunkedPayload());
     }
 
-    public Executor(String hostPort, String znode, String filename, String[] exec)
-        throws IOException {
+    /**
+     * @param format the format of the config when the znode holds a {@link ChunkedPayload} manifest, a znode which
+     *               holds anything else is the config itself.
+     */
+    public Executor(String hostPort, String znode, String filename, Duration debounceWindow,
+                    ChildSupervisor supervisor, ChunkedPayload format) throws IOException {
         this.filename = filename;
-        this.exec = exec;
-        zk = new ZooKeeper(hostPort, 3000, this);
-        dm = new DataMonitor(zk, znode, null, this);
+        this.supervisor = supervisor;
+        this.materializer = new ConfigMaterializer(Paths.get(filename));
+        sessions = new SessionManager(hostPort, SessionManager.DEFAULT_SESSION_TIMEOUT);
+        fetcher = new ChunkFetcher(sessions::session, znode, format);
+        sessions.addWatcher(this);
+        // an expired session is replaced, the monitor goes on from the last version it has seen.
+        sessions.addRenewalListener(session -> {
+            System.out.println("Session expired, monitoring again on a new session");
+            zk = session;
+            dm.rearm(session);
+        });
+        zk = sessions.session();
+        dm = new DataMonitor(zk, znode, null, new CoalescingListener(this, debounceWindow));
     }
 
     @Override
     public void run() {
         try {
             synchronized (this) {
-                while (!dm.dead) {
+                while (!closed) {
                     wait();
                 }
             }
@@ -69,66 +81,86 @@ public class Executor implements Watcher, Runnable, DataMonitor.DataMonitorListe
         dm.process(watchedEvent);
     }
 
+    /**
+     * Called on the dispatcher thread of {@link CoalescingListener}, the child can be swapped without stalling the
+     * session.
+     */
     @Override
     public void exists(byte[] data) {
-        if (data == null) {
-            if (child != null) {
-                System.out.println("Killing process");
-                child.destroy();
-                try {
-                    child.waitFor();
-                } catch (InterruptedException e) {
-                }
-            }
-            child = null;
-        } else {
-            if (child != null) {
-                System.out.println("Stopping child");
-                child.destroy();
-                try {
-                    child.waitFor();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            try (FileOutputStream fos = new FileOutputStream(filename)) {
-                fos.write(data);
-            } catch (IOException e) {
-                e.printStackTrace();
+        try {
+            if (data == null) {
+                supervisor.stop();
+                return;
             }
-            try {
-                System.out.println("Starting child");
-                child = Runtime.getRuntime().exec(exec);
-                new StreamWriter(child.getInputStream(), System.out);
-                new StreamWriter(child.getErrorStream(), System.err);
-            } catch (IOException e) {
-                e.printStackTrace();
+            // only the chunks which have changed since the last config are read.
+            var config = ChunkedPayload.Manifest.isManifest(data)
+                    ? fetcher.fetch(ChunkedPayload.Manifest.parse(data)) : List.of(data);
+            // The file is replaced atomically, the old child can not see a half written config.
+            if (!materializer.materialize(config) && supervisor.isRunning()) {
+                System.out.println("Config unchanged, keeping child");
+                return;
             }
+            supervisor.restart();
+        } catch (KeeperException.NoNodeException e) {
+            System.out.println("Config replaced while it was read, waiting for the new one");
+        } catch (IOException | KeeperException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
         }
     }
 
     @Override
     public void closing(int rc) {
+        if (rc == KeeperException.Code.SessionExpired) {
+            // the session manager renews the session, the child keeps running meanwhile.
+            return;
+        }
         synchronized (this) {
+            closed = true;
             notifyAll();
         }
     }
 
     /**
-     * @param args
+     * @param args the options, then the hostPort, the znode, the filename and the program with its args. The options
+     *             are "--prefix-output" to prefix every line of the child with the host and the program, and
+     *             "--ready-port-env variable", "--ready-file path" or "--ready-marker text" to start the new child
+     *             beside the old one and swap them once the new child listens on the local port given in the
+     *             environment variable, has created the file or has printed the text, and "--dictionary path" for the
+     *             dictionary of a {@link ChunkedPayload} config.
      */
     public static void main(String[] args) {
-        if (args.length < 4) {
-            System.err.println("USAGE: Executor hostPort znode filename program [args ...]");
+        boolean prefixOutput = false;
+        ReadinessProbe probe = null;
+        String dictionary = null;
+        int offset = 0;
+        while (offset < args.length && args[offset].startsWith("--")) {
+            switch (args[offset++]) {
+                case "--prefix-output" -> prefixOutput = true;
+                case "--ready-port-env" -> probe = ReadinessProbe.port("localhost", args[offset++]);
+                case "--ready-file" -> probe = ReadinessProbe.file(Paths.get(args[offset++]));
+                case "--ready-marker" -> probe = ReadinessProbe.outputMarker(args[offset++]);
+                case "--dictionary" -> dictionary = args[offset++];
+                default -> offset = args.length;
+            }
+        }
+        if (args.length < offset + 4) {
+            System.err.println("USAGE: Executor [--prefix-output] [--ready-port-env variable | --ready-file path | "
+                    + "--ready-marker text] [--dictionary path] hostPort znode filename program [args ...]");
             System.exit(2);
         }
-        String hostPort = args[0];
-        String znode = args[1];
-        String filename = args[2];
-        String[] exec = new String[args.length - 3];
-        System.arraycopy(args, 3, exec, 0, exec.length);
+        String hostPort = args[offset];
+        String znode = args[offset + 1];
+        String filename = args[offset + 2];
+        String[] exec = new String[args.length - offset - 3];
+        System.arraycopy(args, offset + 3, exec, 0, exec.length);
         try {
-            new Executor(hostPort, znode, filename, exec).run();
+            var pump = new OutputPump(prefixOutput ? InetAddress.getLocalHost().getHostName() + "/" + exec[0] : null);
+            var supervisor = new ChildSupervisor(exec, pump, probe, READY_TIMEOUT, GRACE_PERIOD);
+            var format = new ChunkedPayload(dictionary == null ? null : Files.readAllBytes(Paths.get(dictionary)));
+            new Executor(hostPort, znode, filename, DEBOUNCE_WINDOW, supervisor, format).run();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,227 @@
+package com.zookeeper.study;
+
+import com.zookeeper.study.metrics.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Copies the output of the child processes to the output of this process.
+ * <p>
+ * Without a prefix nothing is copied by this process at all, the child inherits stdout and stderr. With a prefix every
+ * line is framed as "[prefix] line". The pipes are read by a shared pool of reader threads with a 64 KiB buffer each,
+ * the framed lines are handed to one writer thread through a bounded queue, and the writer writes through a buffer
+ * which is flushed once the queue is drained. When the queue is full the reader waits for room, so no output is lost:
+ * a chatty child fills its own pipe and blocks on its writes, while the monitor and the other children go on.
+ * <p>
+ * The stdout of a child can also be scanned for a marker, the child is then piped even without a prefix.
+ */
+public class OutputPump implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_CAPACITY = 1024;
+    /**
+     * The reader threads are pooled, so are their buffers.
+     */
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private final String prefix;
+    private final ExecutorService readers;
+    private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private final OutputStream stdout;
+    private final OutputStream stderr;
+    private final Map<Process, List<Future<?>>> pumps = new ConcurrentHashMap<>();
+    private final Counter stalls = Metrics.instrumentation().counter("executor.output.stalls");
+
+    private static final class Chunk {
+        final OutputStream target;
+        final byte[] bytes;
+
+        Chunk(OutputStream target, byte[] bytes) {
+            this.target = target;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Create a pump.
+     *
+     * @param prefix the prefix of every line of the children, null for no framing.
+     */
+    public OutputPump(String prefix) {
+        this.prefix = prefix;
+        readers = Executors.newCachedThreadPool(runnable -> {
+            var thread = new Thread(runnable, "output-pump-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        stdout = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), BUFFER_SIZE);
+        stderr = new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), BUFFER_SIZE);
+        writer = new Thread(this::write, "output-pump-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Start a process with its output pumped.
+     *
+     * @param builder the builder of the process, its redirects are set by the pump.
+     * @return the started process.
+     * @throws IOException If the process can not be started.
+     */
+    public Process start(ProcessBuilder builder) throws IOException {
+        return start(builder, null, null);
+    }
+
+    /**
+     * Start a process with its output pumped, and run an action once its stdout has printed a marker.
+     *
+     * @param builder  the builder of the process, its redirects are set by the pump.
+     * @param marker   the marker, null for none.
+     * @param onMarker the action, it is run on a reader thread.
+     * @return the started process.
+     * @throws IOException If the process can not be started.
+     */
+    public Process start(ProcessBuilder builder, String marker, Runnable onMarker) throws IOException {
+        if (prefix == null) {
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            if (marker == null) {
+                return builder.redirectOutput(ProcessBuilder.Redirect.INHERIT).start();
+            }
+        }
+        var process = builder.start();
+        var futures = new ArrayList<Future<?>>(2);
+        futures.add(readers.submit(() -> read(process.getInputStream(), stdout, marker, onMarker)));
+        if (prefix != null) {
+            futures.add(readers.submit(() -> read(process.getErrorStream(), stderr, null, null)));
+        }
+        pumps.put(process, futures);
+        return process;
+    }
+
+    /**
+     * Wait for the output of a process to be read to the end, the process has to be terminated first. The lines may
+     * still be queued for the writer.
+     *
+     * @param process the process.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void drain(Process process) throws InterruptedException {
+        var futures = pumps.remove(process);
+        if (futures == null) {
+            return;
+        }
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    private void read(InputStream in, OutputStream target, String marker, Runnable onMarker) {
+        var framePrefix = prefix == null ? new byte[0] : ("[" + prefix + "] ").getBytes();
+        // one char for each byte, so the marker is found in the bytes whatever the encoding of the output is.
+        var markerText = marker == null ? null
+                : new String(marker.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+        var tail = "";
+        var line = new ByteArrayOutputStream(256);
+        var frames = new ByteArrayOutputStream(BUFFER_SIZE);
+        var buffer = BUFFERS.get();
+        int read;
+        try (in) {
+            while ((read = in.read(buffer)) > 0) {
+                if (markerText != null) {
+                    var text = tail + new String(buffer, 0, read, StandardCharsets.ISO_8859_1);
+                    if (text.contains(markerText)) {
+                        markerText = null;
+                        onMarker.run();
+                    } else {
+                        tail = text.substring(Math.max(0, text.length() - markerText.length() + 1));
+                    }
+                }
+                frames.reset();
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        if (line.size() == 0) {
+                            frames.write(framePrefix);
+                        }
+                        line.writeTo(frames);
+                        line.reset();
+                        frames.write(buffer, start, i + 1 - start);
+                        start = i + 1;
+                    }
+                }
+                if (start < read) {
+                    if (line.size() == 0) {
+                        line.write(framePrefix);
+                    }
+                    line.write(buffer, start, read - start);
+                }
+                if (line.size() >= BUFFER_SIZE) {
+                    // a line without an end can not grow without a limit, the rest of it gets a prefix of its own.
+                    line.write('\n');
+                    frames.write(line.toByteArray());
+                    line.reset();
+                }
+                if (frames.size() > 0) {
+                    put(target, frames.toByteArray());
+                }
+            }
+            if (line.size() > 0) {
+                line.write('\n');
+                put(target, line.toByteArray());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            // the pump is closed.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a chunk for the writer, and wait for room when the queue is full.
+     */
+    private void put(OutputStream target, byte[] bytes) throws InterruptedException {
+        var chunk = new Chunk(target, bytes);
+        if (!queue.offer(chunk)) {
+            stalls.increment();
+            queue.put(chunk);
+        }
+    }
+
+    private void write() {
+        var dirty = new HashSet<OutputStream>();
+        try {
+            while (true) {
+                var chunk = queue.take();
+                do {
+                    chunk.target.write(chunk.bytes);
+                    dirty.add(chunk.target);
+                    chunk = queue.poll();
+                } while (chunk != null);
+                for (var target : dirty) {
+                    target.flush();
+                }
+                dirty.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stop the pump, the output which is not written yet is dropped.
+     */
+    @Override
+    public void close() {
+        readers.shutdownNow();
+        writer.interrupt();
+    }
+}
@@ -0,0 +1,144 @@
+package com.zookeeper.study;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Tells when a child process started by {@link ChildSupervisor} is ready to take over from the old one.
+ */
+public interface ReadinessProbe {
+    /**
+     * How often the port and the file probes check the process.
+     */
+    int POLLING_INTERVAL_MILLIS = 50;
+
+    /**
+     * Start the process, the probe may have to prepare or to watch the output of the process.
+     *
+     * @param builder the builder of the process.
+     * @param pump    the pump of the output of the process.
+     * @return the started process.
+     * @throws IOException If the process can not be started.
+     */
+    default Process start(ProcessBuilder builder, OutputPump pump) throws IOException {
+        return pump.start(builder);
+    }
+
+    /**
+     * Wait for the process to be ready.
+     *
+     * @param process the process.
+     * @param timeout how long to wait at most.
+     * @return true if the process is ready, false if it has exited or the timeout has elapsed.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    boolean awaitReady(Process process, Duration timeout) throws InterruptedException;
+
+    /**
+     * The process is ready once it accepts a connection on a port of its own. The port of the old process can not be
+     * probed, it accepts connections before the new process has even started. So every process gets a free port in an
+     * environment variable, and has to listen on it, for example as its health check port.
+     *
+     * @param host     the host of the port.
+     * @param variable the name of the environment variable which holds the port of the process.
+     * @return the probe.
+     */
+    static ReadinessProbe port(String host, String variable) {
+        return new ReadinessProbe() {
+            private final Map<Process, Integer> ports = new ConcurrentHashMap<>();
+
+            @Override
+            public Process start(ProcessBuilder builder, OutputPump pump) throws IOException {
+                int port;
+                try (var socket = new ServerSocket(0)) {
+                    port = socket.getLocalPort();
+                }
+                builder.environment().put(variable, Integer.toString(port));
+                var process = pump.start(builder);
+                ports.put(process, port);
+                return process;
+            }
+
+            @Override
+            public boolean awaitReady(Process process, Duration timeout) throws InterruptedException {
+                var port = ports.remove(process);
+                return port != null && poll(process, timeout, () -> {
+                    try (var socket = new Socket()) {
+                        socket.connect(new InetSocketAddress(host, port), POLLING_INTERVAL_MILLIS);
+                        return true;
+                    } catch (IOException e) {
+                        return false;
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * The process is ready once it has created a file. The file is deleted before the process starts, so a file left
+     * by the old process does not count.
+     *
+     * @param file the file.
+     * @return the probe.
+     */
+    static ReadinessProbe file(Path file) {
+        return new ReadinessProbe() {
+            @Override
+            public Process start(ProcessBuilder builder, OutputPump pump) throws IOException {
+                Files.deleteIfExists(file);
+                return pump.start(builder);
+            }
+
+            @Override
+            public boolean awaitReady(Process process, Duration timeout) throws InterruptedException {
+                return poll(process, timeout, () -> Files.exists(file));
+            }
+        };
+    }
+
+    /**
+     * The process is ready once it has printed a marker on its stdout.
+     *
+     * @param marker the marker, for example "Started".
+     * @return the probe.
+     */
+    static ReadinessProbe outputMarker(String marker) {
+        return new ReadinessProbe() {
+            private final Map<Process, CountDownLatch> markers = new ConcurrentHashMap<>();
+
+            @Override
+            public Process start(ProcessBuilder builder, OutputPump pump) throws IOException {
+                var seen = new CountDownLatch(1);
+                var process = pump.start(builder, marker, seen::countDown);
+                markers.put(process, seen);
+                return process;
+            }
+
+            @Override
+            public boolean awaitReady(Process process, Duration timeout) throws InterruptedException {
+                var seen = markers.remove(process);
+                return seen != null && poll(process, timeout, () -> seen.getCount() == 0);
+            }
+        };
+    }
+
+    private static boolean poll(Process process, Duration timeout, BooleanSupplier ready)
+            throws InterruptedException {
+        var deadline = System.nanoTime() + timeout.toNanos();
+        while (process.isAlive()) {
+            if (ready.getAsBoolean()) {
+                return true;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            Thread.sleep(POLLING_INTERVAL_MILLIS);
+        }
+        return false;
+    }
+}
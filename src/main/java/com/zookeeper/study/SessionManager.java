@@ -0,0 +1,317 @@
+package com.zookeeper.study;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.client.*;
+
+import java.io.*;
+import java.net.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Hands out shared ZooKeeper sessions. A {@link ZooKeeper} client is thread safe, one session is usually enough for a
+ * whole process, and every extra session costs the ensemble memory and heartbeats. A small pool can be used instead
+ * when one session is the bottleneck, its sessions are striped across the ensemble members: session i tries the
+ * members starting from member i.
+ * <p>
+ * Sessions are created on first use and never block: the requests are queued until the session is connected. The
+ * events of the sessions, including their state changes, are fanned out to the registered watchers.
+ * <p>
+ * An expired session is replaced by a new one right away. The watchers get the expiration first, then the renewal
+ * listeners get the new session to create their ephemeral znodes and set their watches again.
+ */
+public class SessionManager implements AutoCloseable {
+    public static final int DEFAULT_SESSION_TIMEOUT = 3 * 1000;
+    public static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final String PROPERTIES_FILE = "zookeeper.properties";
+    private static final String ZOOKEEPER_1_HOSTNAME = "zookeeper.1.hostname";
+    private static final String ZOOKEEPER_2_HOSTNAME = "zookeeper.2.hostname";
+    private static final String ZOOKEEPER_3_HOSTNAME = "zookeeper.3.hostname";
+    private static SessionManager shared;
+    private final String connectString;
+    private final int sessionTimeout;
+    private final ZooKeeper[] sessions;
+    private final int[] epochs;
+    private final List<CompletableFuture<ZooKeeper>> connected;
+    private final List<Watcher> watchers = new CopyOnWriteArrayList<>();
+    private final List<Consumer<ZooKeeper>> renewalListeners = new CopyOnWriteArrayList<>();
+    private boolean closed;
+
+    /**
+     * Create a manager of one session.
+     *
+     * @param connectString  the connect string of the ensemble, comma separated host:port pairs.
+     * @param sessionTimeout the session timeout in milliseconds.
+     */
+    public SessionManager(String connectString, int sessionTimeout) {
+        this(connectString, sessionTimeout, 1);
+    }
+
+    /**
+     * Create a manager of a pool of sessions.
+     *
+     * @param connectString  the connect string of the ensemble, comma separated host:port pairs.
+     * @param sessionTimeout the session timeout in milliseconds.
+     * @param poolSize       the count of the sessions.
+     */
+    public SessionManager(String connectString, int sessionTimeout, int poolSize) {
+        this.connectString = connectString;
+        this.sessionTimeout = sessionTimeout;
+        this.sessions = new ZooKeeper[poolSize];
+        this.epochs = new int[poolSize];
+        this.connected = new ArrayList<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            connected.add(new CompletableFuture<>());
+        }
+    }
+
+    /**
+     * Get the manager of the ensemble in "zookeeper.properties", which is shared by the whole process.
+     *
+     * @return the shared manager.
+     */
+    public static synchronized SessionManager shared() {
+        if (shared == null) {
+            shared = new SessionManager(hostsFromProperties(), DEFAULT_SESSION_TIMEOUT);
+        }
+        return shared;
+    }
+
+    /**
+     * Read the connect string of the ensemble from "zookeeper.properties" in the class path.
+     *
+     * @return the connect string.
+     */
+    public static String hostsFromProperties() {
+        var prop = new Properties();
+        try (var inputStream = SessionManager.class.getClassLoader().getResourceAsStream(PROPERTIES_FILE)) {
+            if (inputStream == null) {
+                throw new FileNotFoundException(PROPERTIES_FILE);
+            }
+            prop.load(inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return prop.getProperty(ZOOKEEPER_1_HOSTNAME) + ","
+                + prop.getProperty(ZOOKEEPER_2_HOSTNAME) + ","
+                + prop.getProperty(ZOOKEEPER_3_HOSTNAME);
+    }
+
+    /**
+     * Register a watcher for the events of all the sessions. Register it before the first session is used to get the
+     * first connection event.
+     *
+     * @param watcher the watcher.
+     */
+    public void addWatcher(Watcher watcher) {
+        watchers.add(watcher);
+    }
+
+    /**
+     * Unregister a watcher.
+     *
+     * @param watcher the watcher.
+     */
+    public void removeWatcher(Watcher watcher) {
+        watchers.remove(watcher);
+    }
+
+    /**
+     * Register a listener of the sessions which replace the expired ones. The listener is called on the event thread
+     * of the expired session, the new session may not be connected yet.
+     *
+     * @param listener the listener.
+     */
+    public void addRenewalListener(Consumer<ZooKeeper> listener) {
+        renewalListeners.add(listener);
+    }
+
+    /**
+     * Unregister a renewal listener.
+     *
+     * @param listener the listener.
+     */
+    public void removeRenewalListener(Consumer<ZooKeeper> listener) {
+        renewalListeners.remove(listener);
+    }
+
+    /**
+     * Get the first session, it may not be connected yet.
+     *
+     * @return the session.
+     */
+    public ZooKeeper session() {
+        return session(0);
+    }
+
+    /**
+     * Get a session of the pool, it may not be connected yet. The same key always gives the same session.
+     *
+     * @param key any number, for example the index of a worker thread.
+     * @return the session.
+     */
+    public synchronized ZooKeeper session(int key) {
+        var index = Math.floorMod(key, sessions.length);
+        if (sessions[index] == null) {
+            open(index);
+        }
+        return sessions[index];
+    }
+
+    private void open(int index) {
+        // the events of a replaced session are told apart by the epoch.
+        var epoch = ++epochs[index];
+        try {
+            var addresses = new ConnectStringParser(connectString).getServerAddresses();
+            sessions[index] = new ZooKeeper(connectString, sessionTimeout, event -> dispatch(index, epoch, event),
+                    false, new StripedHostProvider(addresses, index));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get the first session once it is connected, without blocking.
+     *
+     * @return the future of the session.
+     */
+    public synchronized CompletableFuture<ZooKeeper> connected() {
+        session();
+        return connected.get(0);
+    }
+
+    /**
+     * Get the first session once it is connected.
+     *
+     * @param timeout how long to wait for the connection.
+     * @return the session.
+     * @throws IOException          If the session is not connected in time.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public ZooKeeper awaitConnected(Duration timeout) throws IOException, InterruptedException {
+        try {
+            return connected().get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("Not connected to " + connectString + " in " + timeout, e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Check if the manager has been closed, its sessions are no longer renewed.
+     *
+     * @return true if it has been closed.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private void dispatch(int index, int epoch, WatchedEvent event) {
+        ZooKeeper renewed = null;
+        // the lock is held until the constructor of the session has returned.
+        synchronized (this) {
+            if (epoch != epochs[index]) {
+                return;
+            }
+            if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                connected.get(index).complete(sessions[index]);
+            } else if (event.getState() == Watcher.Event.KeeperState.Expired && !closed) {
+                connected.set(index, new CompletableFuture<>());
+                open(index);
+                renewed = sessions[index];
+            }
+        }
+        for (var watcher : watchers) {
+            watcher.process(event);
+        }
+        if (renewed != null) {
+            for (var listener : renewalListeners) {
+                listener.accept(renewed);
+            }
+        }
+    }
+
+    /**
+     * Close all the sessions. If the thread is interrupted while a session is closed, the other sessions are still
+     * closed, and the thread is interrupted again at the end.
+     */
+    @Override
+    public void close() {
+        synchronized (SessionManager.class) {
+            if (shared == this) {
+                shared = null;
+            }
+        }
+        var interrupted = false;
+        synchronized (this) {
+            closed = true;
+            for (var session : sessions) {
+                if (session != null) {
+                    try {
+                        session.close();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tries the members in the order of the connect string starting from a stripe, instead of in a random order.
+     * Like the default provider, it pauses once it has tried all the members without connecting.
+     */
+    private static class StripedHostProvider implements HostProvider {
+        private final List<InetSocketAddress> addresses;
+        private int next;
+        private int attempts;
+
+        StripedHostProvider(Collection<InetSocketAddress> addresses, int stripe) {
+            this.addresses = new ArrayList<>(addresses);
+            this.next = Math.floorMod(stripe, this.addresses.size());
+        }
+
+        @Override
+        public synchronized int size() {
+            return addresses.size();
+        }
+
+        @Override
+        public InetSocketAddress next(long spinDelay) {
+            InetSocketAddress address;
+            boolean pause;
+            synchronized (this) {
+                address = addresses.get(next);
+                next = (next + 1) % addresses.size();
+                pause = attempts > 0 && attempts % addresses.size() == 0;
+                attempts++;
+            }
+            if (pause && spinDelay > 0) {
+                try {
+                    Thread.sleep(spinDelay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return address.isUnresolved() ? new InetSocketAddress(address.getHostString(), address.getPort()) : address;
+        }
+
+        @Override
+        public synchronized void onConnected() {
+            attempts = 0;
+        }
+
+        @Override
+        public boolean updateServerList(Collection<InetSocketAddress> serverAddresses,
+                                        InetSocketAddress currentHost) {
+            // the ensemble is static.
+            return false;
+        }
+    }
+}
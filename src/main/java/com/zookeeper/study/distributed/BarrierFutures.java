@@ -0,0 +1,102 @@
+package com.zookeeper.study.distributed;
+
+import org.apache.zookeeper.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Helpers to bridge the asynchronous barrier operations and the blocking methods of {@link DistributedDoubleBarrier}.
+ */
+final class BarrierFutures {
+
+    private BarrierFutures() {
+    }
+
+    /**
+     * Wait for an asynchronous operation to complete. A {@link KeeperException} is wrapped by
+     * {@link IllegalStateException}, the same as the blocking operations always did. If the waiting is interrupted
+     * the operation is cancelled, an operation which supports it withdraws the procedure from the barrier.
+     *
+     * @param future the operation to wait for.
+     * @throws InterruptedException If the waiting is interrupted.
+     */
+    static void await(CompletableFuture<?> future) throws InterruptedException {
+        try {
+            awaitTimed(future);
+        } catch (BarrierTimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Wait for an asynchronous operation which fails with a {@link BarrierTimeoutException} by itself once its time
+     * is up.
+     *
+     * @param future the operation to wait for.
+     * @throws InterruptedException    If the waiting is interrupted.
+     * @throws BarrierTimeoutException If the operation timed out.
+     */
+    static void awaitTimed(CompletableFuture<?> future) throws InterruptedException, BarrierTimeoutException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BarrierTimeoutException) {
+                throw (BarrierTimeoutException) e.getCause();
+            }
+            throw unchecked(e.getCause());
+        }
+    }
+
+    /**
+     * Wait for an asynchronous operation for at most a timeout, and cancel it if it is not done by then.
+     *
+     * @param future  the operation to wait for.
+     * @param timeout how long to wait.
+     * @throws InterruptedException    If the waiting is interrupted.
+     * @throws BarrierTimeoutException If the operation is not done in time, the participants are not known.
+     */
+    static void await(CompletableFuture<?> future, Duration timeout)
+            throws InterruptedException, BarrierTimeoutException {
+        try {
+            future.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            return;
+        } catch (TimeoutException e) {
+            if (future.cancel(false)) {
+                throw new BarrierTimeoutException("Timed out after " + timeout + ".", List.of(), -1);
+            }
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            // reported below.
+        }
+        // the operation completed as it timed out.
+        awaitTimed(future);
+    }
+
+    /**
+     * Complete the future exceptionally with the {@link KeeperException} of a ZooKeeper result code.
+     *
+     * @param future the future to complete.
+     * @param rc     the ZooKeeper result code.
+     * @param path   the path of the failed operation.
+     */
+    static void fail(CompletableFuture<?> future, int rc, String path) {
+        future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+    }
+
+    private static RuntimeException unchecked(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IllegalStateException(cause);
+    }
+}
@@ -0,0 +1,46 @@
+package com.zookeeper.study.distributed;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A procedure gave up waiting on a {@link DistributedDoubleBarrier}. When the implementation supports it, the
+ * procedure has been withdrawn from the barrier before this is thrown, so the others do not count it any more.
+ */
+public class BarrierTimeoutException extends TimeoutException {
+    private static final long serialVersionUID = 1L;
+    private final List<String> participants;
+    private final int missing;
+
+    /**
+     * Create the exception.
+     *
+     * @param message      the detail message.
+     * @param participants the other participants still in the barrier when the procedure gave up.
+     * @param missing      how many participants the barrier was still waiting for, -1 if unknown.
+     */
+    public BarrierTimeoutException(String message, List<String> participants, int missing) {
+        super(message);
+        this.participants = List.copyOf(participants);
+        this.missing = missing;
+    }
+
+    /**
+     * Get the names of the other participants still in the barrier. On enter they are the ones which had arrived, a
+     * scheduler can retry with them as a smaller cohort. On leave they are the ones which had not left.
+     *
+     * @return the names the participants used to enter, empty if unknown.
+     */
+    public List<String> participants() {
+        return participants;
+    }
+
+    /**
+     * Get how many participants the barrier was still waiting for.
+     *
+     * @return the count, -1 if unknown.
+     */
+    public int missing() {
+        return missing;
+    }
+}
@@ -1,6 +1,7 @@
 package com.zookeeper.study.distributed;
 
-import java.io.*;
+import java.time.*;
+import java.util.concurrent.*;
 
 /**
  * A distributed barrier that synchronize on both entering and leaving. Every applications that is going to use this
@@ -31,6 +32,45 @@ public interface DistributedDoubleBarrier {
      */
     void leave(String threadName) throws InterruptedException;
 
+    /**
+     * Enter the barrier, giving up if it does not open in time. The procedure is withdrawn from the barrier if the
+     * implementation supports it, the default implementation only cancels the future of {@link #enterAsync(String)}.
+     *
+     * @param timeout how long to wait for the barrier to open.
+     * @throws InterruptedException    If the transaction is interrupted.
+     * @throws BarrierTimeoutException If the barrier has not opened in time.
+     */
+    default void enter(String threadName, Duration timeout) throws InterruptedException, BarrierTimeoutException {
+        BarrierFutures.await(enterAsync(threadName), timeout);
+    }
+
+    /**
+     * Leave the barrier, giving up if the other procedures do not leave in time. The procedure is withdrawn from the
+     * barrier if the implementation supports it, the default implementation only cancels the future of
+     * {@link #leaveAsync(String)}.
+     *
+     * @param timeout how long to wait for the other procedures to leave.
+     * @throws InterruptedException    If the transaction is interrupted.
+     * @throws BarrierTimeoutException If the other procedures have not left in time.
+     */
+    default void leave(String threadName, Duration timeout) throws InterruptedException, BarrierTimeoutException {
+        BarrierFutures.await(leaveAsync(threadName), timeout);
+    }
+
+    /**
+     * Enter the barrier without blocking the calling thread.
+     *
+     * @return the future which completes when the barrier opens.
+     */
+    CompletableFuture<Void> enterAsync(String threadName);
+
+    /**
+     * Leave the barrier without blocking the calling thread.
+     *
+     * @return the future which completes when all the procedures have left.
+     */
+    CompletableFuture<Void> leaveAsync(String threadName);
+
     /**
      * Release the barrier.
      *
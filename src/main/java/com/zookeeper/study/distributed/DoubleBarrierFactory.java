@@ -0,0 +1,38 @@
+package com.zookeeper.study.distributed;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * Picks the {@link DistributedDoubleBarrier} an application shares between its local parties.
+ */
+public final class DoubleBarrierFactory {
+    private static final Logger logger = LogManager.getLogger(DoubleBarrierFactory.class);
+
+    private DoubleBarrierFactory() {
+    }
+
+    /**
+     * Create the barrier the local parties of this application share. If they are all the parties of the ZooKeeper
+     * barrier, no other application can join it, so the barrier stays in the JVM with a {@link LocalDoubleBarrier}.
+     * Otherwise the local parties are bridged to the other applications through one procedure in ZooKeeper with a
+     * {@link MultiplexedDoubleBarrier}.
+     *
+     * @param barrier      the ZooKeeper barrier of all the parties.
+     * @param localParties the count of the parties of this application.
+     * @return the barrier shared by the local parties.
+     */
+    public static DistributedDoubleBarrier shared(ZookeeperDoubleBarrier barrier, int localParties) {
+        var policy = barrier.policy();
+        if (localParties > policy.participants()) {
+            throw new IllegalArgumentException(localParties + " local parties are more than the " +
+                    policy.participants() + " parties of the barrier.");
+        }
+        if (localParties == policy.participants() && !policy.isPartial()) {
+            logger.info("All the {} parties are local, the barrier stays in the JVM.", localParties);
+            return new LocalDoubleBarrier(localParties);
+        }
+        logger.info("{} of the {} parties are local, they share one procedure in ZooKeeper.", localParties,
+                policy.participants());
+        return new MultiplexedDoubleBarrier(barrier, localParties);
+    }
+}
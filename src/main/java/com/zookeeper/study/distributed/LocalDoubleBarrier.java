@@ -0,0 +1,89 @@
+package com.zookeeper.study.distributed;
+
+import com.zookeeper.study.metrics.*;
+
+import java.util.concurrent.*;
+
+/**
+ * A {@link DistributedDoubleBarrier} for parties which all run in this JVM, on a {@link Phaser} instead of
+ * ZooKeeper. Entering is one phase of the phaser and leaving is the next one, a round takes microseconds instead of
+ * the quorum writes of {@link ZookeeperDoubleBarrier}.
+ * <p>
+ * Like {@link MultiplexedDoubleBarrier}, one instance is shared by all the parties. Use
+ * {@link DoubleBarrierFactory#shared(ZookeeperDoubleBarrier, int)} to pick it only when no other application takes part
+ * in the barrier.
+ */
+public class LocalDoubleBarrier implements DistributedDoubleBarrier {
+    private final ConcurrentMap<Integer, CompletableFuture<Void>> advances = new ConcurrentHashMap<>();
+    private final Phaser phaser;
+    private final Timer enterTimer;
+    private final Timer leaveTimer;
+
+    /**
+     * Create a local double barrier.
+     *
+     * @param parties the count of the parties.
+     */
+    public LocalDoubleBarrier(int parties) {
+        phaser = new Phaser(parties);
+        var instrumentation = Metrics.instrumentation();
+        enterTimer = instrumentation.timer("barrier.local.enter");
+        leaveTimer = instrumentation.timer("barrier.local.leave");
+    }
+
+    /**
+     * Nothing to initialize for a local barrier.
+     */
+    @Override
+    public void init() {
+    }
+
+    @Override
+    public void enter(String threadName) throws InterruptedException {
+        BarrierFutures.await(enterAsync(threadName));
+    }
+
+    @Override
+    public CompletableFuture<Void> enterAsync(String threadName) {
+        return arrive(enterTimer);
+    }
+
+    @Override
+    public void leave(String threadName) throws InterruptedException {
+        BarrierFutures.await(leaveAsync(threadName));
+    }
+
+    @Override
+    public CompletableFuture<Void> leaveAsync(String threadName) {
+        return arrive(leaveTimer);
+    }
+
+    /**
+     * Arrive at the current phase. The futures are not completed by {@link Phaser#onAdvance(int, int)}, a party it
+     * wakes up could arrive again before the phaser has moved to the next phase. The last party to arrive completes
+     * the future of the phase once {@link Phaser#arrive()} has returned instead.
+     */
+    private CompletableFuture<Void> arrive(Timer timer) {
+        var start = System.nanoTime();
+        var phase = phaser.arrive();
+        var advance = advanceOf(phase);
+        if (phaser.getPhase() != phase) {
+            // every party of the previous phase has got its future, since all of them arrived at this phase.
+            advances.remove(phase - 1);
+            advance.complete(null);
+        }
+        advance.thenRun(() -> timer.recordSince(start));
+        return advance.copy();
+    }
+
+    private CompletableFuture<Void> advanceOf(int phase) {
+        return advances.computeIfAbsent(phase, p -> new CompletableFuture<>());
+    }
+
+    /**
+     * Nothing to release for a local barrier.
+     */
+    @Override
+    public void release() {
+    }
+}
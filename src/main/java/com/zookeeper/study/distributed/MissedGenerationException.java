@@ -0,0 +1,40 @@
+package com.zookeeper.study.distributed;
+
+import java.util.*;
+
+/**
+ * A procedure arrived at a partial {@link ZookeeperDoubleBarrier} which had already opened without it, or at a
+ * generation of a cyclic barrier which had opened and been cleaned up. The procedure has been removed from the
+ * barrier, a cyclic barrier moves it on to the next generation.
+ */
+public class MissedGenerationException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+    private final long generation;
+    private final List<String> membership;
+
+    /**
+     * Create the exception.
+     *
+     * @param message    the detail message.
+     * @param generation the generation which has been missed, always 0 if the barrier is not cyclic.
+     * @param membership the names of the participants which entered the generation.
+     */
+    public MissedGenerationException(String message, long generation, List<String> membership) {
+        super(message);
+        this.generation = generation;
+        this.membership = List.copyOf(membership);
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Get the participants which entered the generation.
+     *
+     * @return the names the participants used to enter.
+     */
+    public List<String> membership() {
+        return membership;
+    }
+}
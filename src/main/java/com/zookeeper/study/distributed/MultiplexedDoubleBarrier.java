@@ -0,0 +1,108 @@
+package com.zookeeper.study.distributed;
+
+import org.apache.logging.log4j.*;
+
+import java.util.concurrent.*;
+
+/**
+ * A {@link DistributedDoubleBarrier} which gathers the procedures of an application in the JVM before going to
+ * ZooKeeper. The last local procedure to arrive enters the {@link ZookeeperDoubleBarrier} on behalf of all the local
+ * procedures with one znode whose data is the count of them, and the last local procedure to leave leaves it the same
+ * way. The znodes, the writes and the watches on the server scale with the count of the applications instead of the
+ * count of the threads.
+ * <p>
+ * Unlike {@link ZookeeperDoubleBarrier}, one instance is shared by all the local procedures. Every application using
+ * the barrier must use this class, the count of the ZooKeeper barrier is still the count of all the procedures.
+ */
+public class MultiplexedDoubleBarrier implements DistributedDoubleBarrier {
+    private static final Logger logger = LogManager.getLogger(MultiplexedDoubleBarrier.class);
+    private final ZookeeperDoubleBarrier barrier;
+    private final int localCount;
+    private Round round;
+
+    /**
+     * The local state of one round, a new round begins when all the local procedures have left.
+     */
+    private static class Round {
+        private final CompletableFuture<Void> entered = new CompletableFuture<>();
+        private final CompletableFuture<Void> left = new CompletableFuture<>();
+        private int entering;
+        private int leaving;
+    }
+
+    /**
+     * Create a multiplexed double barrier.
+     *
+     * @param barrier    the ZooKeeper barrier to multiplex, it is copied so it can still be used as a template.
+     * @param localCount the count of the procedures of this application.
+     */
+    public MultiplexedDoubleBarrier(ZookeeperDoubleBarrier barrier, int localCount) {
+        this.barrier = new ZookeeperDoubleBarrier(barrier, true);
+        this.localCount = localCount;
+        round = new Round();
+    }
+
+    @Override
+    public void init() throws InterruptedException {
+        barrier.init();
+    }
+
+    @Override
+    public void enter(String threadName) throws InterruptedException {
+        BarrierFutures.await(enterAsync(threadName));
+    }
+
+    @Override
+    public CompletableFuture<Void> enterAsync(String threadName) {
+        Round current;
+        boolean representative;
+        synchronized (this) {
+            current = round;
+            if (current.entering == localCount) {
+                throw new IllegalStateException("More than " + localCount + " local procedures entered.");
+            }
+            representative = ++current.entering == localCount;
+        }
+        if (representative) {
+            logger.info("{} enters on behalf of {} local procedures.", threadName, localCount);
+            barrier.enterAsync(threadName, localCount).whenComplete((v, e) -> complete(current.entered, e));
+        }
+        return current.entered.copy();
+    }
+
+    @Override
+    public void leave(String threadName) throws InterruptedException {
+        BarrierFutures.await(leaveAsync(threadName));
+    }
+
+    @Override
+    public CompletableFuture<Void> leaveAsync(String threadName) {
+        Round current;
+        boolean representative;
+        synchronized (this) {
+            current = round;
+            representative = ++current.leaving == localCount;
+            if (representative) {
+                round = new Round();
+            }
+        }
+        if (representative) {
+            logger.info("{} leaves on behalf of {} local procedures.", threadName, localCount);
+            barrier.leaveAsync(threadName).whenComplete((v, e) -> complete(current.left, e));
+        }
+        return current.left.copy();
+    }
+
+    @Override
+    public void release() throws InterruptedException {
+        barrier.release();
+    }
+
+    private static void complete(CompletableFuture<Void> future, Throwable e) {
+        if (e == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(e);
+        }
+    }
+}
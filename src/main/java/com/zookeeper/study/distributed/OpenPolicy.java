@@ -0,0 +1,164 @@
+package com.zookeeper.study.distributed;
+
+import java.nio.charset.*;
+import java.time.*;
+import java.util.*;
+
+/**
+ * When a {@link ZookeeperDoubleBarrier} opens. By default it waits for all the participants, a partial policy opens
+ * once a quorum of them has arrived, or at a deadline after the first arrival, whichever comes first, so a straggler
+ * does not hold the others back. The participants which arrive once the barrier has opened are told they missed the
+ * generation.
+ * <p>
+ * The policy is recorded in the data of the root znode, "participants" for the default policy as the count always
+ * was, "participants;quorum=k;deadline=millis" otherwise. The fields the policy does not know, the last generation
+ * which opened for example, are skipped when it is read back.
+ */
+public final class OpenPolicy {
+    private static final String QUORUM = "quorum=";
+    private static final String DEADLINE = "deadline=";
+    private final int participants;
+    private final int quorum;
+    private final Duration deadline;
+
+    private OpenPolicy(int participants, int quorum, Duration deadline) {
+        if (quorum < 1 || quorum > participants) {
+            throw new IllegalArgumentException("The quorum " + quorum + " is not within 1 and " + participants + ".");
+        }
+        this.participants = participants;
+        this.quorum = quorum;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Open once all the participants have arrived.
+     *
+     * @param participants the count of the participants.
+     * @return the policy.
+     */
+    public static OpenPolicy all(int participants) {
+        return new OpenPolicy(participants, participants, null);
+    }
+
+    /**
+     * Open once some of the participants have arrived.
+     *
+     * @param quorum       the count of the participants to wait for.
+     * @param participants the count of the participants.
+     * @return the policy.
+     */
+    public static OpenPolicy quorum(int quorum, int participants) {
+        return new OpenPolicy(participants, quorum, null);
+    }
+
+    /**
+     * Open once a fraction of the participants have arrived.
+     *
+     * @param fraction     the fraction of the participants to wait for, rounded up to a whole participant.
+     * @param participants the count of the participants.
+     * @return the policy.
+     */
+    public static OpenPolicy fraction(double fraction, int participants) {
+        return new OpenPolicy(participants, Math.max((int) Math.ceil(fraction * participants), 1), null);
+    }
+
+    /**
+     * Open at a deadline after the first arrival too, with whoever has arrived by then.
+     *
+     * @param deadline how long the first participant waits for the others.
+     * @return the new policy.
+     */
+    public OpenPolicy withDeadline(Duration deadline) {
+        return new OpenPolicy(participants, quorum, deadline);
+    }
+
+    public int participants() {
+        return participants;
+    }
+
+    public int quorum() {
+        return quorum;
+    }
+
+    /**
+     * Get the deadline after the first arrival.
+     *
+     * @return the deadline, null if the barrier only opens on the quorum.
+     */
+    public Duration deadline() {
+        return deadline;
+    }
+
+    /**
+     * Check if the barrier may open without all the participants.
+     *
+     * @return true if some participants may miss the generation.
+     */
+    public boolean isPartial() {
+        return quorum < participants || deadline != null;
+    }
+
+    /**
+     * Encode the policy as the data of the root znode.
+     *
+     * @return the data.
+     */
+    public byte[] toBytes() {
+        var text = new StringBuilder(Integer.toString(participants));
+        if (quorum < participants) {
+            text.append(';').append(QUORUM).append(quorum);
+        }
+        if (deadline != null) {
+            text.append(';').append(DEADLINE).append(deadline.toMillis());
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode the policy from the data of the root znode.
+     *
+     * @param data the data.
+     * @return the policy.
+     * @throws IllegalArgumentException If the data is not a policy.
+     */
+    public static OpenPolicy parse(byte[] data) {
+        var fields = new String(data, StandardCharsets.UTF_8).split(";");
+        try {
+            var participants = Integer.parseInt(fields[0].trim());
+            var quorum = participants;
+            Duration deadline = null;
+            for (var field : Arrays.asList(fields).subList(1, fields.length)) {
+                if (field.startsWith(QUORUM)) {
+                    quorum = Integer.parseInt(field.substring(QUORUM.length()));
+                } else if (field.startsWith(DEADLINE)) {
+                    deadline = Duration.ofMillis(Long.parseLong(field.substring(DEADLINE.length())));
+                }
+            }
+            return new OpenPolicy(participants, quorum, deadline);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an open policy: " + String.join(";", fields), e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        var that = (OpenPolicy) o;
+        return participants == that.participants && quorum == that.quorum && Objects.equals(deadline, that.deadline);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(participants, quorum, deadline);
+    }
+
+    @Override
+    public String toString() {
+        return new String(toBytes(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,245 @@
+package com.zookeeper.study.distributed;
+
+import com.zookeeper.study.metrics.*;
+import org.apache.logging.log4j.*;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.*;
+
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Hands out unique IDs from a global sequence without a quorum write for each ID, unlike the sequence numbers of
+ * sequential znodes. The counter znode holds the next ID nobody has leased, an allocator leases a block of IDs by
+ * moving it forward with a conditional {@link ZooKeeper#setData(String, byte[], int)} on the version it has read, and
+ * hands the IDs of the block out from an {@link AtomicLong} without a lock. The next block is leased in the background
+ * once half of the current one is handed out, so the threads only wait for the server when it is slower than they
+ * are.
+ * <p>
+ * The IDs are unique among all the allocators of the counter and increase within an allocator, but they are not in
+ * order across allocators, and there are gaps: the rest of the blocks of an allocator which is dropped, and the blocks
+ * whose lease is lost with the connection, are never handed out.
+ * <p>
+ * The counter znode and its parents are created if they are missing. The counter holds the ID in decimal, so it can be
+ * read or moved forward from the command line, and a counter without data starts at 0. A counter which holds
+ * anything else fails the lease with an {@link IllegalStateException}.
+ */
+public class SequenceAllocator {
+    private static final Logger logger = LogManager.getLogger(SequenceAllocator.class);
+    private static final int DEFAULT_BLOCK_SIZE = 1000;
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private final ZooKeeper zk;
+    private final String path;
+    private final int blockSize;
+    private final AtomicReference<CompletableFuture<Block>> pending = new AtomicReference<>();
+    private final Timer leaseTimer;
+    private final Counter conflicts;
+    private final Counter retries;
+    private final Counter stalls;
+    private volatile Block current = new Block(0, 0);
+
+    /**
+     * A leased block of IDs.
+     */
+    private static final class Block {
+        private final AtomicLong next;
+        private final long end;
+        private final long prefetchAt;
+
+        private Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = start + (end - start) / 2;
+        }
+    }
+
+    /**
+     * Create an allocator which leases blocks of {@value DEFAULT_BLOCK_SIZE} IDs.
+     *
+     * @param zk   zookeeper service. User have to close it manually.
+     * @param path the path of the counter znode.
+     */
+    public SequenceAllocator(ZooKeeper zk, String path) {
+        this(zk, path, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Create an allocator.
+     *
+     * @param zk        zookeeper service. User have to close it manually.
+     * @param path      the path of the counter znode.
+     * @param blockSize the count of IDs leased at a time. Larger blocks mean fewer writes and larger gaps.
+     */
+    public SequenceAllocator(ZooKeeper zk, String path, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("The block size " + blockSize + " is not positive.");
+        }
+        this.zk = zk;
+        this.path = path;
+        this.blockSize = blockSize;
+        var instrumentation = Metrics.instrumentation();
+        this.leaseTimer = instrumentation.timer("sequence.lease");
+        this.conflicts = instrumentation.counter("sequence.conflicts");
+        this.retries = instrumentation.counter("sequence.retries");
+        this.stalls = instrumentation.counter("sequence.stalls");
+    }
+
+    /**
+     * Get the next ID. It only waits for the server when the block is used up before the next one is leased.
+     *
+     * @return the ID.
+     * @throws InterruptedException  If the thread is interrupted while waiting for a lease.
+     * @throws IllegalStateException If a block cannot be leased.
+     */
+    public long next() throws InterruptedException {
+        var block = current;
+        while (true) {
+            var id = block.next.getAndIncrement();
+            if (id < block.end) {
+                if (id == block.prefetchAt) {
+                    prefetch();
+                }
+                return id;
+            }
+            block = advance(block);
+        }
+    }
+
+    /**
+     * Move to the next block once the current one is used up. Only one thread waits for the lease, the others wait for
+     * it on the monitor.
+     */
+    private synchronized Block advance(Block exhausted) throws InterruptedException {
+        if (current != exhausted) {
+            return current;
+        }
+        stalls.increment();
+        var lease = prefetch();
+        Block next;
+        try {
+            next = lease.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            // cleared before the block is published, so the prefetch of the new block starts a new lease.
+            pending.compareAndSet(lease, null);
+        }
+        current = next;
+        return next;
+    }
+
+    /**
+     * Start leasing the next block unless it is already being leased.
+     */
+    private CompletableFuture<Block> prefetch() {
+        while (true) {
+            var lease = pending.get();
+            if (lease != null) {
+                return lease;
+            }
+            var created = new CompletableFuture<Block>();
+            if (pending.compareAndSet(null, created)) {
+                lease(created, System.nanoTime());
+                return created;
+            }
+        }
+    }
+
+    /**
+     * Read the counter and move it forward by a block on the version read. Another allocator which moved it first
+     * fails the write with a bad version, and the counter is read again.
+     */
+    private void lease(CompletableFuture<Block> lease, long start) {
+        zk.getData(path, false, (rc, nodePath, ctx, data, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                long from;
+                try {
+                    from = decode(data);
+                } catch (NumberFormatException e) {
+                    // thrown on the event thread, the exception would be lost and the lease would never complete.
+                    lease.completeExceptionally(new IllegalStateException("The counter " + path + " holds "
+                            + new String(data, StandardCharsets.US_ASCII) + ", not an ID.", e));
+                    return;
+                }
+                write(lease, start, from, stat);
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                create(lease, start, path);
+            } else {
+                onError(lease, start, rc, nodePath);
+            }
+        }, null);
+    }
+
+    private void write(CompletableFuture<Block> lease, long start, long from, Stat stat) {
+        var to = from + blockSize;
+        zk.setData(path, encode(to), stat.getVersion(), (rc, nodePath, ctx, written) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                leased(lease, start, from, to);
+            } else if (rc == KeeperException.Code.BADVERSION.intValue()) {
+                conflicts.increment();
+                lease(lease, start);
+            } else {
+                // the block of a write lost with the connection may have been leased, it is skipped.
+                onError(lease, start, rc, nodePath);
+            }
+        }, null);
+    }
+
+    /**
+     * Create the counter with the first block leased, or a missing parent of it first.
+     */
+    private void create(CompletableFuture<Block> lease, long start, String node) {
+        var data = node.equals(path) ? encode(blockSize) : new byte[0];
+        zk.create(node, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, (rc, nodePath, ctx, name) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                if (node.equals(path)) {
+                    leased(lease, start, 0, blockSize);
+                } else {
+                    create(lease, start, path);
+                }
+            } else if (rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                // another allocator created it first.
+                lease(lease, start);
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                create(lease, start, node.substring(0, node.lastIndexOf('/')));
+            } else {
+                onError(lease, start, rc, nodePath);
+            }
+        }, null);
+    }
+
+    private void leased(CompletableFuture<Block> lease, long start, long from, long to) {
+        leaseTimer.recordSince(start);
+        logger.debug("Leased [{}, {}) of {}.", from, to, path);
+        lease.complete(new Block(from, to));
+    }
+
+    private void onError(CompletableFuture<Block> lease, long start, int rc, String nodePath) {
+        if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+            retries.increment();
+            CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+                    .execute(() -> lease(lease, start));
+        } else {
+            lease.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), nodePath));
+        }
+    }
+
+    /**
+     * Read the counter, a counter created without data, for example from the command line, has leased nothing yet.
+     */
+    private static long decode(byte[] data) {
+        if (data == null || data.length == 0) {
+            return 0;
+        }
+        var id = Long.parseLong(new String(data, StandardCharsets.US_ASCII).trim());
+        if (id < 0) {
+            throw new NumberFormatException("A negative ID: " + id);
+        }
+        return id;
+    }
+
+    private static byte[] encode(long id) {
+        return Long.toString(id).getBytes(StandardCharsets.US_ASCII);
+    }
+}
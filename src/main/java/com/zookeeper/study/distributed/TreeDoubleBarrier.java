@@ -0,0 +1,239 @@
+package com.zookeeper.study.distributed;
+
+import com.zookeeper.study.metrics.*;
+import org.apache.logging.log4j.*;
+import org.apache.zookeeper.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A {@link DistributedDoubleBarrier} for thousands of participants. The participants are grouped by their index into
+ * {@link ZookeeperDoubleBarrier}s of at most fan-out F participants. Once a group is full, its leader, the participant
+ * with the lowest index, enters the group of the leaders at the level above, up to a single group at the top. Once
+ * the top group opens the leaders raise the "go" znode of their groups on the way down, the other participants of a
+ * group wait for it. Leaving climbs the tree the same way, the leaders delete the "go" znodes once the top group has
+ * left.
+ * <p>
+ * No znode has more than F procedures or is watched by more than F sessions, and a round takes twice the height of the
+ * tree, log F of the count of the participants, of barriers and signals instead of one barrier of all of them.
+ * <p>
+ * Like {@link ZookeeperDoubleBarrier}, each participant has its own instance, created with its index from 0 to the
+ * count of the participants. A timeout on enter or leave only cancels the future of the participant, the tree does not
+ * withdraw it.
+ */
+public class TreeDoubleBarrier implements DistributedDoubleBarrier {
+    private static final Logger logger = LogManager.getLogger(TreeDoubleBarrier.class);
+    private static final String LEVEL_NODE = "/level-";
+    private static final String GROUP_NODE = "/group-";
+    private static final String GO_NODE = "/go-";
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private final ZookeeperDoubleBarrier template;
+    private final String path;
+    private final int index;
+    private final List<Level> levels = new ArrayList<>();
+    private final Counter retries;
+
+    /**
+     * The group of the participant at a level of the tree.
+     */
+    private static final class Level {
+        private final ZookeeperDoubleBarrier barrier;
+        private final String go;
+        private final boolean leader;
+        private final boolean top;
+
+        private Level(ZookeeperDoubleBarrier barrier, String go, boolean leader, boolean top) {
+            this.barrier = barrier;
+            this.go = go;
+            this.leader = leader;
+            this.top = top;
+        }
+    }
+
+    /**
+     * Create a tree double barrier for a participant.
+     *
+     * @param template the barrier of all the participants, the tree is under its path, and its groups have its leave
+     *                 mode and sessions. The template must open on all the participants.
+     * @param fanOut   the most participants of a group, at least 2.
+     * @param index    the index of the participant, from 0 to the count of the participants.
+     */
+    public TreeDoubleBarrier(ZookeeperDoubleBarrier template, int fanOut, int index) {
+        var policy = template.policy();
+        if (policy.isPartial()) {
+            throw new IllegalArgumentException("A tree barrier opens on all the participants, not " + policy + ".");
+        }
+        if (fanOut < 2) {
+            throw new IllegalArgumentException("The fan-out " + fanOut + " is less than 2.");
+        }
+        var participants = policy.participants();
+        if (index < 0 || index >= participants) {
+            throw new IllegalArgumentException("The index " + index + " is not within 0 and " + participants + ".");
+        }
+        this.template = template;
+        this.path = template.path();
+        this.index = index;
+        this.retries = Metrics.instrumentation().counter("barrier.tree.retries");
+        // the participant is the member of one group at each level it leads at the level below.
+        var members = participants;
+        var member = index;
+        for (int level = 0; ; level++) {
+            var group = member / fanOut;
+            var size = Math.min(fanOut, members - group * fanOut);
+            var top = members <= fanOut;
+            var leader = !top && member % fanOut == 0;
+            var levelPath = path + LEVEL_NODE + level;
+            levels.add(new Level(new ZookeeperDoubleBarrier(template, levelPath + GROUP_NODE + group,
+                    OpenPolicy.all(size)), levelPath + GO_NODE + group, leader, top));
+            if (!leader) {
+                break;
+            }
+            member /= fanOut;
+            members = (members + fanOut - 1) / fanOut;
+        }
+    }
+
+    @Override
+    public void init() throws InterruptedException {
+        template.init();
+    }
+
+    @Override
+    public void enter(String threadName) throws InterruptedException {
+        BarrierFutures.await(enterAsync(threadName));
+    }
+
+    @Override
+    public CompletableFuture<Void> enterAsync(String threadName) {
+        return climb(threadName, 0, true);
+    }
+
+    @Override
+    public void leave(String threadName) throws InterruptedException {
+        BarrierFutures.await(leaveAsync(threadName));
+    }
+
+    @Override
+    public CompletableFuture<Void> leaveAsync(String threadName) {
+        return climb(threadName, 0, false);
+    }
+
+    /**
+     * Enter or leave the group of a level, then wait for the top group through the leader of the group. A leader
+     * climbs to the level above and signals its group once it is back, the "go" znode is present from the time the
+     * tree opens until all the participants have left.
+     */
+    private CompletableFuture<Void> climb(String threadName, int depth, boolean entering) {
+        var level = levels.get(depth);
+        var crossed = entering ? level.barrier.enterAsync(threadName) : level.barrier.leaveAsync(threadName);
+        if (level.leader) {
+            return crossed.thenCompose(v -> climb(threadName, depth + 1, entering)).thenCompose(v -> {
+                logger.info("{} {} {}.", threadName, entering ? "raises" : "lowers", level.go);
+                var signalled = new CompletableFuture<Void>();
+                signal(signalled, level.go, entering);
+                return signalled;
+            });
+        }
+        if (level.top) {
+            return crossed;
+        }
+        return crossed.thenCompose(v -> {
+            var released = new CompletableFuture<Void>();
+            await(released, level.go, entering);
+            return released;
+        });
+    }
+
+    /**
+     * Raise or lower the "go" znode of a group. Both are idempotent, so a lost connection just sends them again.
+     */
+    private void signal(CompletableFuture<Void> future, String go, boolean raise) {
+        var zk = template.session();
+        AsyncCallback.StringCallback created = (rc, nodePath, ctx, name) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                future.complete(null);
+            } else {
+                onError(future, rc, nodePath, () -> signal(future, go, raise));
+            }
+        };
+        AsyncCallback.VoidCallback deleted = (rc, nodePath, ctx) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue()) {
+                future.complete(null);
+            } else {
+                onError(future, rc, nodePath, () -> signal(future, go, raise));
+            }
+        };
+        if (raise) {
+            zk.create(go, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, created, null);
+        } else {
+            zk.delete(go, -1, deleted, null);
+        }
+    }
+
+    /**
+     * Wait for the "go" znode of the group to be raised or lowered.
+     */
+    private void await(CompletableFuture<Void> future, String go, boolean raised) {
+        var zk = template.session();
+        Watcher watcher = event -> {
+            if (future.isDone()) {
+                return;
+            }
+            if (event.getType() != Watcher.Event.EventType.None) {
+                await(future, go, raised);
+            } else if (event.getState() == Watcher.Event.KeeperState.Expired) {
+                onError(future, KeeperException.Code.SESSIONEXPIRED.intValue(), go, () -> await(future, go, raised));
+            }
+        };
+        zk.exists(go, watcher, (rc, nodePath, ctx, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue()) {
+                if ((rc == KeeperException.Code.OK.intValue()) == raised) {
+                    future.complete(null);
+                }
+            } else {
+                onError(future, rc, nodePath, () -> await(future, go, raised));
+            }
+        }, null);
+    }
+
+    /**
+     * Send a request again once the client has reconnected, or once the session manager has replaced the expired
+     * session. Any other failure fails the future.
+     */
+    private void onError(CompletableFuture<Void> future, int rc, String nodePath, Runnable retry) {
+        if (future.isDone()) {
+            return;
+        }
+        if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()
+                || rc == KeeperException.Code.SESSIONEXPIRED.intValue() && template.renewsSessions()) {
+            retries.increment();
+            CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS).execute(retry);
+        } else {
+            BarrierFutures.fail(future, rc, nodePath);
+        }
+    }
+
+    /**
+     * Release the barrier, removing the whole tree.
+     *
+     * @throws InterruptedException If the transaction is interrupted.
+     */
+    @Override
+    public void release() throws InterruptedException {
+        try {
+            ZKUtil.deleteRecursive(template.session(), path);
+        } catch (KeeperException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get the index of the participant.
+     *
+     * @return the index.
+     */
+    public int index() {
+        return index;
+    }
+}
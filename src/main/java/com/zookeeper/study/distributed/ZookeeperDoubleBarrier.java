@@ -1,22 +1,164 @@
 package com.zookeeper.study.distributed;
 
+import com.zookeeper.study.*;
+import com.zookeeper.study.metrics.*;
+import com.zookeeper.study.metrics.Timer;
 import org.apache.logging.log4j.*;
 import org.apache.zookeeper.*;
 
+import java.nio.charset.*;
+
+import java.time.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 /**
  * Zookeeper implementation of {@link DistributedDoubleBarrier}. Each threads, no matter if it is from the same
  * application, have to create the instance with the same constructor parameters.
+ * <p>
+ * A barrier created with a {@link SessionManager} survives the expiration of its session: the operation in progress
+ * resumes on the new session in the same round, the procedure's znode is created again if it was lost with the old
+ * session. A lost connection never fails an operation, the failed request is sent again once the client has
+ * reconnected.
+ * <p>
+ * An operation with a timeout, or which is cancelled, withdraws the procedure: its znode is deleted in a transaction
+ * which fails if the barrier has opened meanwhile, so either the others never count the procedure or the procedure
+ * has entered after all.
+ * <p>
+ * With a partial {@link OpenPolicy} the barrier opens without some participants. The "ready" znode records the
+ * members of the round, a participant which finds the barrier open but is not a member has missed the generation.
+ * <p>
+ * The root znode of a cyclic barrier records the last generation which opened after the policy, "policy;opened=n", so
+ * a participant which arrives once its generation has been cleaned up misses it instead of creating it again.
  */
 public class ZookeeperDoubleBarrier implements DistributedDoubleBarrier {
     private static final Logger logger = LogManager.getLogger(ZookeeperDoubleBarrier.class);
     private static final String READY_NODE = "/ready";
+    private static final String GENERATION_NODE = "/generation-";
+    private static final String OPENED = ";opened=";
+    private static final int SEQUENCE_LENGTH = 10;
+    private static final int ID_LENGTH = 36;
+    private static final long RETRY_DELAY_MILLIS = 100;
     private final ZooKeeper zookeeper;
+    private final SessionManager sessions;
     private final String path;
-    private final int count;
-    private String ephemeralNode;
-    private final Object leaveMutex;
+    private final OpenPolicy policy;
+    private final LeaveMode leaveMode;
+    private final boolean cyclic;
+    private final boolean weighted;
+    private final Timer enterTimer;
+    private final Timer leaveTimer;
+    private final Counter childrenReads;
+    private final Counter leaveWakeups;
+    private final Counter spuriousLeaveWakeups;
+    private final Counter retries;
+    private final Counter recoveries;
+    private volatile String ephemeralNode;
+    private volatile long generation;
+    /**
+     * If the generation has been read from the root znode, or copied from a barrier which has read it.
+     */
+    private volatile boolean synced;
+
+    /**
+     * How the procedures wait for each other when leaving the barrier.
+     */
+    public enum LeaveMode {
+        /**
+         * Every procedure watches the children of the root and lists them again on every departure. Each departure
+         * wakes all the remaining procedures.
+         */
+        BROADCAST,
+
+        /**
+         * The ZooKeeper double barrier recipe. The procedure with the lowest sequence number waits on the one with the
+         * highest, every other procedure deletes its znode and waits on the lowest one. A departure before the last
+         * one wakes at most the lowest procedure, but the lowest procedure leaves last, and the delete of its znode
+         * wakes all the procedures still waiting on it, N - 1 of them at the end of a round.
+         */
+        CHAINED
+    }
+
+    /**
+     * One enter or leave of a procedure. It remembers the session its requests are sent on, so the late failures of
+     * an expired session are told apart, and how to resume on a new session.
+     */
+    private static final class Operation {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final AtomicReference<ZooKeeper> session;
+        private volatile String round;
+        private final String threadName;
+        private volatile Runnable resume;
+        private String node;
+        /**
+         * If the operation timed out or has been cancelled, and if the procedure's znode is being withdrawn. An
+         * aborting operation is only completed by the withdrawal.
+         */
+        private boolean aborting;
+        private boolean withdrawing;
+
+        Operation(ZooKeeper session, String round, String threadName) {
+            this.session = new AtomicReference<>(session);
+            this.round = round;
+            this.threadName = threadName;
+        }
+
+        ZooKeeper zk() {
+            return session.get();
+        }
+
+        synchronized String node() {
+            return node;
+        }
+
+        synchronized boolean isAborting() {
+            return aborting;
+        }
+
+        /**
+         * Check if nothing is left to do, a cancelled operation still has to withdraw its znode.
+         */
+        synchronized boolean isDone() {
+            return future.isDone() && !withdrawing;
+        }
+
+        /**
+         * Record the procedure's znode.
+         *
+         * @return true if the operation has been aborted meanwhile and the caller has to withdraw the znode.
+         */
+        synchronized boolean created(String node) {
+            this.node = node;
+            return startWithdrawal();
+        }
+
+        /**
+         * Abort the operation.
+         *
+         * @return true if the caller has to withdraw the znode, false if it has not been created yet or is already
+         * being withdrawn.
+         */
+        synchronized boolean abort() {
+            aborting = true;
+            return startWithdrawal();
+        }
+
+        private boolean startWithdrawal() {
+            if (aborting && node != null && !withdrawing) {
+                withdrawing = true;
+                return true;
+            }
+            return false;
+        }
+
+        void complete() {
+            if (!isAborting()) {
+                future.complete(null);
+            }
+        }
+    }
 
     /**
      * Create a double barrier by using a Zookeeper service.
@@ -26,10 +168,102 @@ public class ZookeeperDoubleBarrier implements DistributedDoubleBarrier {
      * @param count     the minimal procedure for this barrier to open.
      */
     public ZookeeperDoubleBarrier(ZooKeeper zookeeper, String path, int count) {
+        this(zookeeper, path, count, LeaveMode.BROADCAST);
+    }
+
+    /**
+     * Create a double barrier by using a Zookeeper service.
+     *
+     * @param zookeeper zookeeper service. User have to close it manually.
+     * @param path      the path of the root node for this double barrier, should not end with '/'.
+     * @param count     the minimal procedure for this barrier to open.
+     * @param leaveMode how the procedures wait for each other when leaving.
+     */
+    public ZookeeperDoubleBarrier(ZooKeeper zookeeper, String path, int count, LeaveMode leaveMode) {
+        this(zookeeper, path, count, leaveMode, false);
+    }
+
+    /**
+     * Create a double barrier by using a Zookeeper service.
+     * <p>
+     * A cyclic barrier runs every round under its own generation znode, "generation-0", "generation-1" and so on.
+     * A procedure moves to the next generation when it leaves, so the rounds can run back to back: a slow procedure
+     * of an old generation never releases or blocks a new one, and the old generation is cleaned up in the background
+     * instead of on the path of the next round. All the procedures have to start from the same generation, in other
+     * words every procedure has to take part in every round. A new barrier starts from the generation after the last
+     * one which opened, it reads it from the root znode in {@link #init()} or else when it first enters, and a copy
+     * starts from the generation of the barrier it copies, so an application can run again on the same root.
+     *
+     * @param zookeeper zookeeper service. User have to close it manually.
+     * @param path      the path of the root node for this double barrier, should not end with '/'.
+     * @param count     the minimal procedure for this barrier to open.
+     * @param leaveMode how the procedures wait for each other when leaving.
+     * @param cyclic    if every round runs under its own generation znode.
+     */
+    public ZookeeperDoubleBarrier(ZooKeeper zookeeper, String path, int count, LeaveMode leaveMode, boolean cyclic) {
+        this(zookeeper, null, path, OpenPolicy.all(count), leaveMode, cyclic);
+    }
+
+    /**
+     * Create a double barrier which opens by a policy, for example once a quorum of the participants has arrived.
+     *
+     * @param zookeeper zookeeper service. User have to close it manually.
+     * @param path      the path of the root node for this double barrier, should not end with '/'.
+     * @param policy    when the barrier opens, it is recorded in the root znode.
+     * @param leaveMode how the procedures wait for each other when leaving.
+     * @param cyclic    if every round runs under its own generation znode.
+     */
+    public ZookeeperDoubleBarrier(ZooKeeper zookeeper, String path, OpenPolicy policy, LeaveMode leaveMode,
+                                  boolean cyclic) {
+        this(zookeeper, null, path, policy, leaveMode, cyclic);
+    }
+
+    /**
+     * Create a double barrier which outlives its sessions. The operations run on the first session of the manager,
+     * and resume on the new session when it expires.
+     *
+     * @param sessions  the session manager. User have to close it manually.
+     * @param path      the path of the root node for this double barrier, should not end with '/'.
+     * @param count     the minimal procedure for this barrier to open.
+     * @param leaveMode how the procedures wait for each other when leaving.
+     * @param cyclic    if every round runs under its own generation znode.
+     */
+    public ZookeeperDoubleBarrier(SessionManager sessions, String path, int count, LeaveMode leaveMode,
+                                  boolean cyclic) {
+        this(null, sessions, path, OpenPolicy.all(count), leaveMode, cyclic);
+    }
+
+    /**
+     * Create a double barrier which outlives its sessions and opens by a policy.
+     *
+     * @param sessions  the session manager. User have to close it manually.
+     * @param path      the path of the root node for this double barrier, should not end with '/'.
+     * @param policy    when the barrier opens, it is recorded in the root znode.
+     * @param leaveMode how the procedures wait for each other when leaving.
+     * @param cyclic    if every round runs under its own generation znode.
+     */
+    public ZookeeperDoubleBarrier(SessionManager sessions, String path, OpenPolicy policy, LeaveMode leaveMode,
+                                  boolean cyclic) {
+        this(null, sessions, path, policy, leaveMode, cyclic);
+    }
+
+    private ZookeeperDoubleBarrier(ZooKeeper zookeeper, SessionManager sessions, String path, OpenPolicy policy,
+                                   LeaveMode leaveMode, boolean cyclic) {
         this.zookeeper = zookeeper;
+        this.sessions = sessions;
         this.path = path;
-        this.count = count;
-        leaveMutex = new Object();
+        this.policy = policy;
+        this.leaveMode = leaveMode;
+        this.cyclic = cyclic;
+        this.weighted = false;
+        var instrumentation = Metrics.instrumentation();
+        this.enterTimer = instrumentation.timer("barrier.enter");
+        this.leaveTimer = instrumentation.timer("barrier.leave");
+        this.childrenReads = instrumentation.counter("barrier.getChildren");
+        this.leaveWakeups = instrumentation.counter("barrier.leave.wakeups");
+        this.spuriousLeaveWakeups = instrumentation.counter("barrier.leave.spuriousWakeups");
+        this.retries = instrumentation.counter("barrier.retries");
+        this.recoveries = instrumentation.counter("barrier.recoveries");
     }
 
     /**
@@ -39,13 +273,72 @@ public class ZookeeperDoubleBarrier implements DistributedDoubleBarrier {
      * @param from the barrier to copy from.
      */
     public ZookeeperDoubleBarrier(ZookeeperDoubleBarrier from) {
+        this(from, from.weighted);
+    }
+
+    /**
+     * A copy constructor which decides if the procedures' znodes carry a weight. All the procedures of a weighted
+     * barrier must be weighted.
+     *
+     * @param from     the barrier to copy from.
+     * @param weighted if the barrier opens on the sum of the weights instead of the count of the znodes.
+     */
+    ZookeeperDoubleBarrier(ZookeeperDoubleBarrier from, boolean weighted) {
         this.zookeeper = from.zookeeper;
+        this.sessions = from.sessions;
         this.path = from.path;
-        this.count = from.count;
+        this.policy = from.policy;
+        this.leaveMode = from.leaveMode;
+        this.cyclic = from.cyclic;
+        this.weighted = weighted;
+        this.enterTimer = from.enterTimer;
+        this.leaveTimer = from.leaveTimer;
+        this.childrenReads = from.childrenReads;
+        this.leaveWakeups = from.leaveWakeups;
+        this.spuriousLeaveWakeups = from.spuriousLeaveWakeups;
+        this.retries = from.retries;
+        this.recoveries = from.recoveries;
         this.ephemeralNode = from.ephemeralNode;
-        leaveMutex = new Object();
+        this.generation = from.generation;
+        this.synced = from.synced;
     }
 
+    /**
+     * A copy constructor for a barrier on another path, which shares the sessions and the metrics of this one.
+     *
+     * @param from   the barrier to copy from.
+     * @param path   the path of the root node for the new barrier, should not end with '/'.
+     * @param policy when the new barrier opens.
+     */
+    ZookeeperDoubleBarrier(ZookeeperDoubleBarrier from, String path, OpenPolicy policy) {
+        this.zookeeper = from.zookeeper;
+        this.sessions = from.sessions;
+        this.path = path;
+        this.policy = policy;
+        this.leaveMode = from.leaveMode;
+        this.cyclic = from.cyclic;
+        this.weighted = false;
+        this.enterTimer = from.enterTimer;
+        this.leaveTimer = from.leaveTimer;
+        this.childrenReads = from.childrenReads;
+        this.leaveWakeups = from.leaveWakeups;
+        this.spuriousLeaveWakeups = from.spuriousLeaveWakeups;
+        this.retries = from.retries;
+        this.recoveries = from.recoveries;
+    }
+
+    ZooKeeper session() {
+        return sessions != null ? sessions.session() : zookeeper;
+    }
+
+    /**
+     * Check if a new session replaces an expired one.
+     *
+     * @return true if the barrier runs on a session manager which is not closed.
+     */
+    boolean renewsSessions() {
+        return sessions != null && !sessions.isClosed();
+    }
 
     /**
      * Initialize the DoubleBarrier. If this DoubleBarrier is considered initialized, nothing will happen.
@@ -54,13 +347,43 @@ public class ZookeeperDoubleBarrier implements DistributedDoubleBarrier {
      */
     public void init() throws InterruptedException {
         try {
-            zookeeper.create(path, Integer.toString(count).getBytes(),
+            session().create(path, policy.toBytes(),
                     ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
         } catch (KeeperException e1) {
             if (!e1.code().equals(KeeperException.Code.NODEEXISTS)) {
                 throw new IllegalStateException(e1);
             }
         }
+        if (cyclic && !synced) {
+            try {
+                generation = checkRoot(session().getData(path, false, null)) + 1;
+                synced = true;
+            } catch (KeeperException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    String path() {
+        return path;
+    }
+
+    /**
+     * Get the policy which decides when the barrier opens.
+     *
+     * @return the policy.
+     */
+    public OpenPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * Get the generation of the next round of this procedure. It is always 0 if the barrier is not cyclic.
+     *
+     * @return the generation.
+     */
+    public long generation() {
+        return generation;
     }
 
     /**
@@ -69,55 +392,602 @@ public class ZookeeperDoubleBarrier implements DistributedDoubleBarrier {
      * @throws InterruptedException If the transaction is interrupted.
      */
     public void enter(String threadName) throws InterruptedException {
+        BarrierFutures.await(enterAsync(threadName));
+    }
+
+    /**
+     * Enter the barrier, giving up if it does not open in time. The procedure is withdrawn from the barrier before
+     * the exception is thrown.
+     *
+     * @param timeout how long to wait for the barrier to open.
+     * @throws InterruptedException    If the transaction is interrupted.
+     * @throws BarrierTimeoutException If the barrier has not opened in time.
+     */
+    @Override
+    public void enter(String threadName, Duration timeout) throws InterruptedException, BarrierTimeoutException {
+        BarrierFutures.awaitTimed(enterAsync(threadName, timeout));
+    }
+
+    /**
+     * Enter the barrier without blocking. The returned future is completed on the ZooKeeper event thread, dependent
+     * actions that block should use the async variants of {@link CompletableFuture}.
+     *
+     * @param threadName the name of the procedure, it is used as the prefix of the procedure's znode.
+     * @return the future which completes when the barrier opens.
+     */
+    @Override
+    public CompletableFuture<Void> enterAsync(String threadName) {
+        return enterAsync(threadName, 1, null);
+    }
+
+    /**
+     * Enter the barrier without blocking, giving up if it does not open in time. Once the time is up the procedure
+     * is withdrawn and the future fails with a {@link BarrierTimeoutException} telling the participants which had
+     * arrived, unless the barrier opened meanwhile. Cancelling the future withdraws the procedure too.
+     *
+     * @param threadName the name of the procedure, it is used as the prefix of the procedure's znode.
+     * @param timeout    how long to wait for the barrier to open.
+     * @return the future which completes when the barrier opens.
+     */
+    public CompletableFuture<Void> enterAsync(String threadName, Duration timeout) {
+        return enterAsync(threadName, 1, timeout);
+    }
+
+    /**
+     * Enter the barrier on behalf of several procedures. The weight is stored as the data of the procedure's znode,
+     * a weighted barrier opens when the sum of the weights reaches the count.
+     *
+     * @param threadName the name of the procedure, it is used as the prefix of the procedure's znode.
+     * @param weight     the count of the procedures this znode stands for.
+     * @return the future which completes when the barrier opens.
+     */
+    CompletableFuture<Void> enterAsync(String threadName, int weight) {
+        return enterAsync(threadName, weight, null);
+    }
+
+    private CompletableFuture<Void> enterAsync(String threadName, int weight, Duration timeout) {
 
         /*
          * Implementation overview:
          * A child znode named "ready" is used to notify the waiting procedures. Every procedure creates an ephemeral
          * znode and register a watcher for the creation of "ready" znode. Before waiting for "ready znode", the
-         * procedure will check the count of the children. If the count of children equal or great than the count,
-         * it create the "ready" znode.
+         * procedure will check how many procedures have arrived. Instead of listing the children, it reads the stat of
+         * the root znode, numChildren is maintained by the server so the check is O(1) no matter how many procedures
+         * there are. Creates are totally ordered and a session always reads its own writes, so the last procedure to
+         * create its znode is guaranteed to see the full count and create the "ready" znode. A weighted barrier can
+         * open with fewer znodes than the count, if the znodes are not enough the weights of all of them are summed.
+         *
+         * The generation znode of a cyclic barrier is fresh for every round, and no child is deleted before the
+         * "ready" znode exists, so the sequence number of the first "count" procedures is exactly their arrival
+         * order. The procedure with the sequence number count - 1 creates the "ready" znode without any read. A
+         * procedure whose session expired still holds its sequence number, it creates its znode again on a new
+         * session with a sequence number beyond count - 1 and counts the arrivals like a procedure of a non cyclic
+         * barrier.
+         *
+         * The name of the znode carries a unique id, so after a lost connection the procedure can tell if its create
+         * has been applied before creating the znode again.
+         *
+         * A partial barrier opens on the quorum instead of the count of the participants, or when the deadline set by
+         * the first procedure to arrive is up. The opener lists the members in the "ready" znode, a procedure which
+         * sees the "ready" znode reads it to check it is a member.
+         *
+         * A procedure which gives up deletes its znode and bumps the data version of the round in the same
+         * transaction, and the "ready" znode is only created, bumping the version too, if the version has not changed
+         * since the arrivals were counted. The fast path above expects version 0, no procedure has given up.
          */
-        try {
-            var latch = new CountDownLatch(1);
-            // add a node to root.
-            var nodePath = path + '/' + Thread.currentThread().getName();
-            ephemeralNode = zookeeper.create(nodePath, new byte[0],
-                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-            logger.info("{} created {}.", threadName, ephemeralNode);
-            // set the watcher before we create the ready znode.
-            if (zookeeper.exists(path + READY_NODE, event -> latch.countDown()) != null) {
+        var start = System.nanoTime();
+        var op = new Operation(session(), roundPath(), threadName);
+        var prefix = threadName + '-' + UUID.randomUUID() + '-';
+        var data = weight == 1 ? new byte[0] : Integer.toString(weight).getBytes();
+        abortOn(op, timeout, this::withdrawEnter);
+        if (cyclic && !synced) {
+            readGeneration(op, () -> {
+                op.round = roundPath();
+                op.resume = () -> resumeEnter(op, prefix, data);
+                enterRound(op, prefix, data);
+            });
+        } else {
+            op.resume = () -> resumeEnter(op, prefix, data);
+            enterRound(op, prefix, data);
+        }
+        op.future.whenComplete((result, e) -> enterTimer.recordSince(start));
+        return op.future;
+    }
+
+    /**
+     * Start a new barrier from the generation after the last one which opened, instead of from the first generation
+     * which has been cleaned up long ago.
+     */
+    private void readGeneration(Operation op, Runnable then) {
+        op.resume = () -> readGeneration(op, then);
+        op.zk().getData(path, false, (rc, rootPath, ctx, rootData, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                try {
+                    generation = checkRoot(rootData) + 1;
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    op.future.completeExceptionally(e);
+                    return;
+                }
+            } else if (rc != KeeperException.Code.NONODE.intValue()) {
+                onError(op, ctx, rc, rootPath, () -> readGeneration(op, then));
                 return;
             }
+            synced = true;
+            then.run();
+        }, op.zk());
+    }
 
+    private void enterRound(Operation op, String prefix, byte[] data) {
+        createProcedure(op, prefix, data, name -> {
+            ephemeralNode = name;
+            logger.info("{} created {}.", op.threadName, name);
+            if (op.created(name)) {
+                withdrawEnter(op);
+                return;
+            }
+            var sequence = sequenceOf(name);
+            if (policy.deadline() != null) {
+                CompletableFuture.delayedExecutor(policy.deadline().toNanos(), TimeUnit.NANOSECONDS)
+                        .execute(() -> openAtDeadline(op));
+            }
+            var quorum = policy.quorum();
+            if (cyclic && !weighted && sequence == quorum - 1) {
+                openRound(op, 0, op::complete, () -> awaitReady(op, true));
+            } else {
+                awaitReady(op, !cyclic || weighted || sequence > quorum - 1);
+            }
+        });
+    }
 
-            var children = zookeeper.getChildren(path, false);
-            logger.info("{} found {} children.", () -> threadName, children::size);
-            if (children.size() >= count) {
-                createReadyIfNotExist();
+    /**
+     * The znode of an expired session is gone. Unless the barrier has opened meanwhile, the znode is created again in
+     * the same round.
+     */
+    private void resumeEnter(Operation op, String prefix, byte[] data) {
+        op.zk().exists(op.round + READY_NODE, false, (rc, readyPath, ctx, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                checkMembership(op, op::complete);
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                enterRound(op, prefix, data);
+            } else {
+                onError(op, ctx, rc, readyPath, () -> resumeEnter(op, prefix, data));
             }
-            latch.await();
-        } catch (KeeperException e) {
-            throw new IllegalStateException(e);
+        }, op.zk());
+    }
+
+    private void createProcedure(Operation op, String prefix, byte[] data, Consumer<String> then) {
+        // add a node to root.
+        op.zk().create(op.round + '/' + prefix, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.EPHEMERAL_SEQUENTIAL, (rc, nodePath, ctx, name) -> {
+                    if (rc == KeeperException.Code.OK.intValue()) {
+                        then.accept(name);
+                    } else if (rc == KeeperException.Code.NONODE.intValue() && cyclic) {
+                        createGeneration(op, prefix, data, then);
+                    } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                        createWithAncestors(op, prefix, data, then, 1, -1);
+                    } else if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+                        retries.increment();
+                        later(() -> findProcedure(op, prefix, data, then));
+                    } else {
+                        onError(op, ctx, rc, nodePath, null);
+                    }
+                }, op.zk());
+    }
+
+    /**
+     * Look for the procedure's znode after a create whose result was lost with the connection, and create it only if
+     * the create has not been applied.
+     */
+    private void findProcedure(Operation op, String prefix, byte[] data, Consumer<String> then) {
+        childrenReads.increment();
+        op.zk().getChildren(op.round, false, (rc, rootPath, ctx, children) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                for (var child : children) {
+                    if (child.startsWith(prefix)) {
+                        then.accept(rootPath + '/' + child);
+                        return;
+                    }
+                }
+                createProcedure(op, prefix, data, then);
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                createProcedure(op, prefix, data, then);
+            } else {
+                onError(op, ctx, rc, rootPath, () -> findProcedure(op, prefix, data, then));
+            }
+        }, op.zk());
+    }
+
+    /**
+     * Create the generation znode unless the generation has opened already, the procedure has arrived after it was
+     * cleaned up then. The generation is only created if the root has not changed since it was read, so a round
+     * which opens in between is noticed.
+     */
+    private void createGeneration(Operation op, String prefix, byte[] data, Consumer<String> then) {
+        op.zk().getData(path, false, (rc, rootPath, ctx, rootData, stat) -> {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                createWithAncestors(op, prefix, data, then, 2, -1);
+                return;
+            }
+            if (rc != KeeperException.Code.OK.intValue()) {
+                onError(op, ctx, rc, rootPath, () -> createGeneration(op, prefix, data, then));
+                return;
+            }
+            long opened;
+            try {
+                opened = checkRoot(rootData);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                // thrown on the event thread, the exception would be lost and the operation would never complete.
+                op.future.completeExceptionally(e);
+                return;
+            }
+            if (opened >= generationOf(op)) {
+                cleanedUp(op);
+            } else {
+                createWithAncestors(op, prefix, data, then, 1, stat.getVersion());
+            }
+        }, op.zk());
+    }
+
+    /**
+     * Create the procedure's znode together with its missing ancestors, the parents of the root, the root and the
+     * generation znode, in one transaction instead of one round-trip for each of them. The count of the missing
+     * ancestors is not known, it grows for each NONODE until all of them are created.
+     *
+     * @param rootVersion the data version of the root when the generation was found not to have opened, -1 if it
+     *                    was not read.
+     */
+    private void createWithAncestors(Operation op, String prefix, byte[] data, Consumer<String> then, int missing,
+                                     int rootVersion) {
+        var ancestors = new ArrayList<String>();
+        for (int slash = path.indexOf('/', 1); slash > 0; slash = path.indexOf('/', slash + 1)) {
+            ancestors.add(path.substring(0, slash));
+        }
+        ancestors.add(path);
+        if (cyclic) {
+            ancestors.add(op.round);
+        }
+        var created = ancestors.subList(ancestors.size() - missing, ancestors.size());
+        var ops = new ArrayList<Op>(missing + 2);
+        if (rootVersion >= 0 && !created.contains(path)) {
+            ops.add(Op.check(path, rootVersion));
         }
+        for (var ancestor : created) {
+            var ancestorData = ancestor.equals(path) ? policy.toBytes() : new byte[0];
+            ops.add(Op.create(ancestor, ancestorData, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        }
+        ops.add(Op.create(op.round + '/' + prefix, data, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.EPHEMERAL_SEQUENTIAL));
+        op.zk().multi(ops, (rc, nodePath, ctx, results) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                then.accept(((OpResult.CreateResult) results.get(results.size() - 1)).getPath());
+            } else if (rc == KeeperException.Code.NONODE.intValue() && missing < ancestors.size()) {
+                createWithAncestors(op, prefix, data, then, missing + 1, rootVersion);
+            } else if (rc == KeeperException.Code.BADVERSION.intValue()) {
+                // a round has opened since the root was read, it may be the procedure's generation.
+                createGeneration(op, prefix, data, then);
+            } else if (rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                // another procedure created the ancestors first.
+                createProcedure(op, prefix, data, then);
+            } else if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+                retries.increment();
+                later(() -> findProcedure(op, prefix, data, then));
+            } else {
+                onError(op, ctx, rc, op.round, null);
+            }
+        }, op.zk());
     }
 
-    private void createReadyIfNotExist() throws InterruptedException, KeeperException {
-        try {
-            zookeeper.create(path + READY_NODE, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-        } catch (KeeperException e) {
-            if (!e.code().equals(KeeperException.Code.NODEEXISTS)) {
-                throw e;
+    /**
+     * Wait for the "ready" znode. Only a procedure which may be the last to arrive counts the arrivals.
+     */
+    private void awaitReady(Operation op, boolean check) {
+        // set the watcher before we create the ready znode.
+        op.zk().exists(op.round + READY_NODE, onChange(op, () -> checkMembership(op, op::complete)),
+                (rc, readyPath, ctx, stat) -> {
+                    if (rc == KeeperException.Code.OK.intValue()) {
+                        checkMembership(op, op::complete);
+                    } else if (rc != KeeperException.Code.NONODE.intValue()) {
+                        onError(op, ctx, rc, readyPath, () -> awaitReady(op, check));
+                    } else if (check) {
+                        checkArrivals(op);
+                    }
+                }, op.zk());
+    }
+
+    private void checkArrivals(Operation op) {
+        op.zk().exists(op.round, false, (rc, rootPath, ctx, stat) -> {
+            if (rc != KeeperException.Code.OK.intValue()) {
+                onError(op, ctx, rc, rootPath, () -> checkArrivals(op));
+                return;
+            }
+            logger.info("{} found {} children.", op.threadName, stat.getNumChildren());
+            if (stat.getNumChildren() >= policy.quorum()) {
+                openRound(op, stat.getVersion(), () -> {
+                }, () -> checkArrivals(op));
+            } else if (weighted) {
+                checkWeights(op);
+            }
+        }, op.zk());
+    }
+
+    private void checkWeights(Operation op) {
+        childrenReads.increment();
+        op.zk().getChildren(op.round, false, (rc, rootPath, ctx, children, rootStat) -> {
+            if (rc != KeeperException.Code.OK.intValue()) {
+                onError(op, ctx, rc, rootPath, () -> checkWeights(op));
+                return;
+            }
+            var procedures = sortedProcedures(children);
+            var remaining = new AtomicInteger(procedures.size());
+            var total = new AtomicInteger();
+            var failed = new AtomicBoolean();
+            for (var procedure : procedures) {
+                op.zk().getData(rootPath + '/' + procedure, false, (rc1, nodePath, ctx1, data, stat) -> {
+                    if (rc1 == KeeperException.Code.OK.intValue()) {
+                        total.addAndGet(weightOf(data));
+                    } else if (rc1 != KeeperException.Code.NONODE.intValue() && !failed.getAndSet(true)) {
+                        onError(op, ctx1, rc1, nodePath, () -> checkWeights(op));
+                    }
+                    if (remaining.decrementAndGet() == 0 && total.get() >= policy.quorum()) {
+                        openRound(op, rootStat.getVersion(), () -> {
+                        }, () -> checkArrivals(op));
+                    }
+                }, ctx);
             }
+        }, op.zk());
+    }
+
+    private static int weightOf(byte[] data) {
+        return data == null || data.length == 0 ? 1 : Integer.parseInt(new String(data));
+    }
+
+    /**
+     * Create the "ready" znode unless a procedure has given up since the arrivals were counted. Opening bumps the
+     * data version of the round too, so a procedure which is giving up at the same time sees it.
+     *
+     * @param version the data version of the round when the arrivals were counted.
+     * @param recount how to count the arrivals again if a procedure has given up.
+     */
+    private void openRound(Operation op, int version, Runnable then, Runnable recount) {
+        if (!policy.isPartial()) {
+            createReady(op, version, new byte[0], then, recount);
+            return;
         }
+        // the procedures which arrive after the listing are not members, they find it out from the "ready" znode.
+        childrenReads.increment();
+        op.zk().getChildren(op.round, false, (rc, rootPath, ctx, children) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                var members = String.join("\n", sortedProcedures(children));
+                createReady(op, version, members.getBytes(StandardCharsets.UTF_8), then, recount);
+            } else {
+                onError(op, ctx, rc, rootPath, () -> openRound(op, version, then, recount));
+            }
+        }, op.zk());
     }
 
-    private void removeReadyIfExist() throws InterruptedException, KeeperException {
-        try {
-            zookeeper.delete(path + READY_NODE, -1);
-        } catch (KeeperException e) {
-            if (!e.code().equals(KeeperException.Code.NONODE)) {
-                throw e;
+    private void createReady(Operation op, int version, byte[] members, Runnable then, Runnable recount) {
+        var ops = new ArrayList<Op>(3);
+        ops.add(Op.setData(op.round, roundData(), version));
+        ops.add(Op.create(op.round + READY_NODE, members, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        if (cyclic) {
+            // the generations open in order, a procedure only opens the next one once it has left this one.
+            var opened = policy + OPENED + generationOf(op);
+            ops.add(Op.setData(path, opened.getBytes(StandardCharsets.UTF_8), -1));
+        }
+        op.zk().multi(ops, (rc, nodePath, ctx, results) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                then.run();
+            } else if (rc == KeeperException.Code.BADVERSION.intValue()) {
+                recount.run();
+            } else {
+                onError(op, ctx, rc, op.round, () -> createReady(op, version, members, then, recount));
+            }
+        }, op.zk());
+    }
+
+    /**
+     * Open the round of a partial barrier with whoever has arrived, once the deadline of the procedure is up.
+     */
+    private void openAtDeadline(Operation op) {
+        if (op.future.isDone() || op.isAborting()) {
+            return;
+        }
+        op.zk().exists(op.round, false, (rc, rootPath, ctx, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                logger.info("{} opens {} at the deadline with {} children.", op.threadName, op.round,
+                        stat.getNumChildren());
+                openRound(op, stat.getVersion(), () -> {
+                }, () -> openAtDeadline(op));
+            } else {
+                onError(op, ctx, rc, rootPath, () -> openAtDeadline(op));
+            }
+        }, op.zk());
+    }
+
+    /**
+     * Run the action if the procedure is a member of the opened round. A procedure which arrived at a partial
+     * barrier after it opened removes its znode and fails with a {@link MissedGenerationException}.
+     */
+    private void checkMembership(Operation op, Runnable member) {
+        if (!policy.isPartial()) {
+            member.run();
+            return;
+        }
+        op.zk().getData(op.round + READY_NODE, false, (rc, readyPath, ctx, data, stat) -> {
+            if (rc == KeeperException.Code.NONODE.intValue() && cyclic) {
+                // the members have left and cleaned up the generation meanwhile.
+                missed(op, op.node(), List.of());
+                return;
+            }
+            if (rc != KeeperException.Code.OK.intValue()) {
+                onError(op, ctx, rc, readyPath, () -> checkMembership(op, member));
+                return;
+            }
+            var members = Arrays.asList(new String(data, StandardCharsets.UTF_8).split("\n"));
+            var node = op.node();
+            if (node != null && members.contains(node.substring(op.round.length() + 1))) {
+                member.run();
+                return;
+            }
+            var membership = new ArrayList<String>(members.size());
+            for (var procedure : members) {
+                membership.add(participantOf(procedure));
+            }
+            missed(op, node, membership);
+        }, op.zk());
+    }
+
+    /**
+     * Handle a procedure which arrived once its generation had opened and had been cleaned up. The members are gone
+     * with the "ready" znode, so a procedure whose znode was lost with an expired session is taken for a member only
+     * if the barrier opens on all the participants.
+     */
+    private void cleanedUp(Operation op) {
+        if (op.node() != null && !policy.isPartial()) {
+            logger.info("{} found {} opened and cleaned up.", op.threadName, op.round);
+            op.complete();
+        } else {
+            missed(op, null, List.of());
+        }
+    }
+
+    /**
+     * Remove the procedure's znode and fail with a {@link MissedGenerationException}, a cyclic barrier moves the
+     * procedure on to the next generation.
+     *
+     * @param node       the procedure's znode, null if it has not been created.
+     * @param membership the participants which entered the generation, empty if they are not known any more.
+     */
+    private void missed(Operation op, String node, List<String> membership) {
+        Runnable fail = () -> {
+            logger.info("{} missed {}, it opened with {}.", op.threadName, op.round, membership);
+            ephemeralNode = null;
+            var missed = generation;
+            if (cyclic) {
+                generation++;
+            }
+            op.future.completeExceptionally(new MissedGenerationException(op.threadName + " missed " + op.round
+                    + (membership.isEmpty() ? "." : ", it opened with " + membership + "."), missed, membership));
+        };
+        if (node == null) {
+            fail.run();
+        } else {
+            deleteIfExist(op, node, fail);
+        }
+    }
+
+    /**
+     * Withdraw the procedure from a barrier which has not opened. The version of the round is read before checking
+     * the "ready" znode, and the znode is deleted in the same transaction which bumps the version. If the barrier
+     * opens in between the transaction fails, and the procedure finds it has entered after all.
+     */
+    private void withdrawEnter(Operation op) {
+        op.resume = () -> withdrawEnter(op);
+        op.zk().exists(op.round, false, (rc, rootPath, ctx, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                withdrawIfClosed(op, stat.getVersion());
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                withdrawn(op);
+            } else {
+                onError(op, ctx, rc, rootPath, () -> withdrawEnter(op));
+            }
+        }, op.zk());
+    }
+
+    private void withdrawIfClosed(Operation op, int version) {
+        var node = op.node();
+        op.zk().exists(op.round + READY_NODE, false, (rc, readyPath, ctx, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                logger.info("{} gave up but the barrier has opened.", op.threadName);
+                checkMembership(op, () -> op.future.complete(null));
+                return;
             }
+            if (rc != KeeperException.Code.NONODE.intValue()) {
+                onError(op, ctx, rc, readyPath, () -> withdrawEnter(op));
+                return;
+            }
+            var ops = List.of(Op.setData(op.round, roundData(), version), Op.delete(node, -1));
+            op.zk().multi(ops, (rc1, nodePath, ctx1, results) -> {
+                if (rc1 == KeeperException.Code.OK.intValue() || rc1 == KeeperException.Code.NONODE.intValue()) {
+                    // the znode may have gone with an expired session.
+                    withdrawn(op);
+                } else if (rc1 == KeeperException.Code.BADVERSION.intValue()) {
+                    // the barrier has opened or another procedure has given up.
+                    withdrawEnter(op);
+                } else if (rc1 == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+                    // the transaction may have been applied, then the znode is gone.
+                    retries.increment();
+                    later(() -> watchProcedure(op, node.substring(op.round.length() + 1), () -> withdrawn(op),
+                            () -> withdrawEnter(op)));
+                } else {
+                    onError(op, ctx1, rc1, nodePath, null);
+                }
+            }, ctx);
+        }, op.zk());
+    }
+
+    private void withdrawn(Operation op) {
+        logger.info("{} gave up and deleted {}.", op.threadName, op.node());
+        ephemeralNode = null;
+        reportTimeout(op, "enter", true);
+    }
+
+    /**
+     * Withdraw the procedure from the leave, the other procedures do not wait on it any more.
+     */
+    private void withdrawLeave(Operation op) {
+        op.resume = () -> withdrawLeave(op);
+        var node = op.node();
+        deleteIfExist(op, node, () -> {
+            logger.info("{} gave up and deleted {}.", op.threadName, node);
+            reportTimeout(op, "leave", false);
+        });
+    }
+
+    /**
+     * Fail the operation with the participants still in the round. A leave whose participants have all left
+     * completes after all.
+     */
+    private void reportTimeout(Operation op, String action, boolean entering) {
+        childrenReads.increment();
+        op.zk().getChildren(op.round, false, (rc, rootPath, ctx, children) -> {
+            if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()) {
+                onError(op, ctx, rc, rootPath, () -> reportTimeout(op, action, entering));
+                return;
+            }
+            var participants = new ArrayList<String>();
+            if (children != null) {
+                for (var procedure : sortedProcedures(children)) {
+                    participants.add(participantOf(procedure));
+                }
+            }
+            if (!entering && participants.isEmpty()) {
+                removeRound(op, () -> op.future.complete(null));
+                return;
+            }
+            var missing = entering ? Math.max(policy.quorum() - participants.size(), 1) : participants.size();
+            op.future.completeExceptionally(new BarrierTimeoutException(op.threadName + " gave up to " + action
+                    + " " + op.round + ", missing " + missing + " participants.", participants, missing));
+        }, op.zk());
+    }
+
+    /**
+     * Withdraw the procedure when the operation is cancelled, or when it is not done before the timeout.
+     *
+     * @param timeout the timeout, null to wait forever.
+     */
+    private void abortOn(Operation op, Duration timeout, Consumer<Operation> withdraw) {
+        op.future.whenComplete((result, e) -> {
+            if (e instanceof CancellationException && op.abort()) {
+                withdraw.accept(op);
+            }
+        });
+        if (timeout != null) {
+            CompletableFuture.delayedExecutor(timeout.toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+                if (!op.future.isDone() && op.abort()) {
+                    withdraw.accept(op);
+                }
+            });
         }
     }
 
@@ -127,27 +997,362 @@ public class ZookeeperDoubleBarrier implements DistributedDoubleBarrier {
      * @throws InterruptedException If the transaction is interrupted.
      */
     public void leave(String threadName) throws InterruptedException {
-        try {
-            zookeeper.delete(ephemeralNode, 0);
-            logger.info("{} deleted {}.", threadName, ephemeralNode);
-            while (true) {
-                synchronized (leaveMutex) {
-                    var children = zookeeper.getChildren(path, event -> {
-                        synchronized (leaveMutex) {
-                            leaveMutex.notifyAll();
-                        }
-                    });
-                    if (children.size() > 1) {
-                        leaveMutex.wait();
-                    } else {
-                        removeReadyIfExist();
-                        return;
+        BarrierFutures.await(leaveAsync(threadName));
+    }
+
+    /**
+     * Leave the barrier, giving up if the other procedures do not leave in time. The procedure's znode is deleted
+     * before the exception is thrown, the others do not wait on it any more.
+     *
+     * @param timeout how long to wait for the other procedures to leave.
+     * @throws InterruptedException    If the transaction is interrupted.
+     * @throws BarrierTimeoutException If the other procedures have not left in time.
+     */
+    @Override
+    public void leave(String threadName, Duration timeout) throws InterruptedException, BarrierTimeoutException {
+        BarrierFutures.awaitTimed(leaveAsync(threadName, timeout));
+    }
+
+    /**
+     * Leave the barrier without blocking. The returned future is completed on the ZooKeeper event thread, dependent
+     * actions that block should use the async variants of {@link CompletableFuture}.
+     *
+     * @param threadName the name of the procedure, it is only used for logging.
+     * @return the future which completes when all the procedures have left.
+     */
+    @Override
+    public CompletableFuture<Void> leaveAsync(String threadName) {
+        return leaveAsync(threadName, null);
+    }
+
+    /**
+     * Leave the barrier without blocking, giving up if the other procedures do not leave in time. Once the time is up
+     * the procedure's znode is deleted and the future fails with a {@link BarrierTimeoutException} telling the
+     * participants which have not left. Cancelling the future deletes the znode too.
+     *
+     * @param threadName the name of the procedure, it is only used for logging.
+     * @param timeout    how long to wait for the other procedures to leave.
+     * @return the future which completes when all the procedures have left.
+     */
+    public CompletableFuture<Void> leaveAsync(String threadName, Duration timeout) {
+        var start = System.nanoTime();
+        var op = new Operation(session(), roundPath(), threadName);
+        var node = ephemeralNode;
+        op.created(node);
+        if (cyclic) {
+            generation++;
+        }
+        // the znode of an expired session is gone, the procedure goes on waiting for the others.
+        if (leaveMode == LeaveMode.CHAINED) {
+            op.resume = () -> leaveChained(op, node, false);
+            leaveChained(op, node, false);
+        } else {
+            op.resume = () -> leaveBroadcast(op, false);
+            deleteIfExist(op, node, () -> {
+                logger.info("{} deleted {}.", threadName, node);
+                leaveBroadcast(op, false);
+            });
+        }
+        abortOn(op, timeout, this::withdrawLeave);
+        op.future.whenComplete((result, e) -> leaveTimer.recordSince(start));
+        return op.future;
+    }
+
+    /**
+     * List the remaining procedures until only the "ready" znode is left. A wakeup of the watcher which finds other
+     * procedures still there is counted as spurious.
+     */
+    private void leaveBroadcast(Operation op, boolean woken) {
+        countChildrenRead(woken);
+        op.zk().getChildren(op.round, onChange(op, () -> leaveBroadcast(op, true)),
+                (rc, rootPath, ctx, children) -> {
+                    if (cyclic && rc == KeeperException.Code.NONODE.intValue()) {
+                        // the generation has been cleaned up by the last procedure.
+                        op.complete();
+                    } else if (rc != KeeperException.Code.OK.intValue()) {
+                        onError(op, ctx, rc, rootPath, () -> leaveBroadcast(op, woken));
+                    } else if (children.size() <= 1) {
+                        removeRound(op, op::complete);
+                    } else if (woken) {
+                        spuriousLeaveWakeups.increment();
                     }
+                }, op.zk());
+    }
+
+    private void leaveChained(Operation op, String node, boolean woken) {
+        var self = node.substring(op.round.length() + 1);
+        countChildrenRead(woken);
+        op.zk().getChildren(op.round, false, (rc, rootPath, ctx, children) -> {
+            if (cyclic && rc == KeeperException.Code.NONODE.intValue()) {
+                op.complete();
+                return;
+            }
+            if (rc != KeeperException.Code.OK.intValue()) {
+                onError(op, ctx, rc, rootPath, () -> leaveChained(op, node, woken));
+                return;
+            }
+            var procedures = sortedProcedures(children);
+            if (procedures.isEmpty()) {
+                // the last procedure left on an expired session, its cleanup may not have happened.
+                removeRound(op, op::complete);
+                return;
+            }
+            var lowest = procedures.get(0);
+            Runnable retry = () -> leaveChained(op, node, true);
+            if (procedures.size() == 1 && lowest.equals(self)) {
+                // the lowest procedure is always the last one to leave, it cleans up the "ready" znode.
+                removeLast(op, node);
+                return;
+            }
+            if (woken) {
+                spuriousLeaveWakeups.increment();
+            }
+            if (lowest.equals(self)) {
+                watchProcedure(op, procedures.get(procedures.size() - 1), retry);
+            } else if (procedures.contains(self)) {
+                deleteIfExist(op, node, () -> {
+                    logger.info("{} deleted {}.", op.threadName, node);
+                    watchProcedure(op, lowest, retry);
+                });
+            } else {
+                watchProcedure(op, lowest, retry);
+            }
+        }, op.zk());
+    }
+
+    private void countChildrenRead(boolean woken) {
+        childrenReads.increment();
+        if (woken) {
+            leaveWakeups.increment();
+        }
+    }
+
+    /**
+     * Run the action when the procedure's znode is gone.
+     */
+    private void watchProcedure(Operation op, String procedure, Runnable action) {
+        op.zk().exists(op.round + '/' + procedure, onChange(op, action), (rc, nodePath, ctx, stat) -> {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                action.run();
+            } else if (rc != KeeperException.Code.OK.intValue()) {
+                onError(op, ctx, rc, nodePath, () -> watchProcedure(op, procedure, action));
+            }
+        }, op.zk());
+    }
+
+    /**
+     * Run one of the actions depending on whether the procedure's znode exists, without watching it.
+     */
+    private void watchProcedure(Operation op, String procedure, Runnable gone, Runnable exists) {
+        op.zk().exists(op.round + '/' + procedure, false, (rc, nodePath, ctx, stat) -> {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                gone.run();
+            } else if (rc == KeeperException.Code.OK.intValue()) {
+                exists.run();
+            } else {
+                onError(op, ctx, rc, nodePath, () -> watchProcedure(op, procedure, gone, exists));
+            }
+        }, op.zk());
+    }
+
+    /**
+     * Create a watcher which runs the action on a znode event. Connection state changes are delivered to every
+     * watcher, they are not a change of the watched znode, only the expiration of the session interrupts the
+     * operation. Watches outlive the operation which set them, so nothing happens once the operation is done.
+     */
+    private Watcher onChange(Operation op, Runnable action) {
+        var session = op.zk();
+        return event -> {
+            if (op.isDone()) {
+                return;
+            }
+            if (event.getType() == Watcher.Event.EventType.None) {
+                if (event.getState() == Watcher.Event.KeeperState.Expired) {
+                    recover(op, session);
                 }
+            } else if (!op.isAborting()) {
+                action.run();
             }
-        } catch (KeeperException e) {
-            throw new IllegalStateException(e);
+        };
+    }
+
+    /**
+     * Handle a failed request of an operation. A lost connection is retried once the client has had time to
+     * reconnect, an expired session resumes the operation on a new session, any other failure fails the operation.
+     *
+     * @param ctx   the session the request was sent on.
+     * @param retry how to send the request again, null if the caller looks for its result by itself.
+     */
+    private void onError(Operation op, Object ctx, int rc, String nodePath, Runnable retry) {
+        if (ctx != op.zk() || op.isDone()) {
+            // a late failure of an expired session, the operation has already resumed on a new one.
+            return;
+        }
+        if (rc == KeeperException.Code.CONNECTIONLOSS.intValue() && retry != null) {
+            retries.increment();
+            later(retry);
+        } else if (rc == KeeperException.Code.SESSIONEXPIRED.intValue()) {
+            recover(op, (ZooKeeper) ctx);
+        } else {
+            BarrierFutures.fail(op.future, rc, nodePath);
+        }
+    }
+
+    /**
+     * Resume an operation on the session which replaces the expired one, once however many of its requests and
+     * watches report the expiration.
+     */
+    private void recover(Operation op, ZooKeeper expired) {
+        if (op.isDone()) {
+            return;
+        }
+        if (sessions == null || sessions.isClosed()) {
+            BarrierFutures.fail(op.future, KeeperException.Code.SESSIONEXPIRED.intValue(), path);
+            return;
         }
+        var renewed = sessions.session();
+        if (renewed == expired) {
+            // the failed requests may be reported before the manager has seen the expiration.
+            later(() -> recover(op, expired));
+        } else if (op.session.compareAndSet(expired, renewed)) {
+            recoveries.increment();
+            logger.warn("{} lost its session, resuming in {}.", op.threadName, op.round);
+            op.resume.run();
+        }
+    }
+
+    private static void later(Runnable action) {
+        CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS).execute(action);
+    }
+
+    /**
+     * Delete the znode of the last procedure and clean up the round in one transaction. If the transaction fails, for
+     * example because a procedure beyond the count is still in the generation, fall back to deleting them one by one.
+     */
+    private void removeLast(Operation op, String node) {
+        var ops = new ArrayList<Op>(3);
+        ops.add(Op.delete(node, -1));
+        ops.add(Op.delete(op.round + READY_NODE, -1));
+        if (cyclic) {
+            ops.add(Op.delete(op.round, -1));
+        }
+        op.zk().multi(ops, (rc, nodePath, ctx, results) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                logger.info("{} deleted {} and cleaned up {}.", op.threadName, node, op.round);
+                op.complete();
+            } else {
+                deleteIfExist(op, node, () -> {
+                    logger.info("{} deleted {}.", op.threadName, node);
+                    removeRound(op, op::complete);
+                });
+            }
+        }, op.zk());
+    }
+
+    /**
+     * Clean up after the last procedure has left. The "ready" znode of a reused root has to be gone before anyone
+     * enters again. A generation is never reused, so it is cleaned up in the background.
+     */
+    private void removeRound(Operation op, Runnable then) {
+        var round = op.round;
+        if (!cyclic) {
+            deleteIfExist(op, round + READY_NODE, then);
+            return;
+        }
+        then.run();
+        op.zk().multi(List.of(Op.delete(round + READY_NODE, -1), Op.delete(round, -1)),
+                (rc, nodePath, ctx, results) -> {
+                    if (rc == KeeperException.Code.NONODE.intValue()) {
+                        // someone else removed the "ready" znode, the generation may still be there.
+                        op.zk().delete(round, -1, (rc1, nodePath1, ctx1) -> warnCleanup(rc1, round), null);
+                    } else {
+                        warnCleanup(rc, round);
+                    }
+                }, null);
+    }
+
+    private static void warnCleanup(int rc, String round) {
+        if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()) {
+            logger.warn("Failed to clean up {}.", round,
+                    KeeperException.create(KeeperException.Code.get(rc), round));
+        }
+    }
+
+    private void deleteIfExist(Operation op, String node, Runnable then) {
+        op.zk().delete(node, -1, (rc, nodePath, ctx) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue()) {
+                then.run();
+            } else {
+                onError(op, ctx, rc, nodePath, () -> deleteIfExist(op, node, then));
+            }
+        }, op.zk());
+    }
+
+    private String roundPath() {
+        return cyclic ? path + GENERATION_NODE + generation : path;
+    }
+
+    private long generationOf(Operation op) {
+        return Long.parseLong(op.round.substring(path.length() + GENERATION_NODE.length()));
+    }
+
+    /**
+     * Read the data of the root znode, a root created without data, for example as the parent of another barrier,
+     * records nothing.
+     *
+     * @return the last generation which opened, -1 if none has opened.
+     * @throws IllegalArgumentException If the data is not a policy.
+     * @throws IllegalStateException    If the barrier opens by another policy.
+     */
+    private long checkRoot(byte[] rootData) {
+        if (rootData == null || rootData.length == 0) {
+            return -1;
+        }
+        var recorded = OpenPolicy.parse(rootData);
+        if (!recorded.equals(policy)) {
+            throw new IllegalStateException("The barrier " + path + " opens by " + recorded + ", not by " + policy
+                    + ".");
+        }
+        var text = new String(rootData, StandardCharsets.UTF_8);
+        var field = text.lastIndexOf(OPENED);
+        try {
+            return field < 0 ? -1 : Long.parseLong(text.substring(field + OPENED.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an opened generation: " + text, e);
+        }
+    }
+
+    /**
+     * The data of the round znode, it is written again to bump the version when a procedure gives up.
+     */
+    private byte[] roundData() {
+        return cyclic ? new byte[0] : policy.toBytes();
+    }
+
+    /**
+     * Filter out the "ready" znode and sort the procedures' znodes by their sequence numbers. The sequence suffix is
+     * compared instead of the whole name because the name starts with the creator's thread name.
+     */
+    private static List<String> sortedProcedures(List<String> children) {
+        var procedures = new ArrayList<String>(children.size());
+        for (var child : children) {
+            if (!READY_NODE.substring(1).equals(child)) {
+                procedures.add(child);
+            }
+        }
+        procedures.sort(Comparator.comparingLong(ZookeeperDoubleBarrier::sequenceOf));
+        return procedures;
+    }
+
+    private static long sequenceOf(String node) {
+        return Long.parseLong(node.substring(node.length() - SEQUENCE_LENGTH));
+    }
+
+    /**
+     * Get the name a procedure entered with from the name of its znode, "name-id-sequence".
+     */
+    private static String participantOf(String node) {
+        return node.substring(0, Math.max(node.length() - SEQUENCE_LENGTH - ID_LENGTH - 2, 0));
     }
 
     /**
@@ -158,7 +1363,12 @@ public class ZookeeperDoubleBarrier implements DistributedDoubleBarrier {
     @Override
     public void release() throws InterruptedException {
         try {
-            zookeeper.delete(path, -1);
+            if (cyclic) {
+                // the background cleanup of the last generations may not have finished.
+                ZKUtil.deleteRecursive(session(), path);
+            } else {
+                session().delete(path, -1);
+            }
         } catch (KeeperException e) {
             throw new IllegalStateException(e);
         }
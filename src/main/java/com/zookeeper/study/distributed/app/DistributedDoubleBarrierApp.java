@@ -1,10 +1,15 @@
 package com.zookeeper.study.distributed.app;
 
+import com.zookeeper.study.*;
 import com.zookeeper.study.distributed.*;
+import com.zookeeper.study.metrics.*;
 
+import javax.management.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -14,7 +19,8 @@ import org.apache.zookeeper.*;
  * Test {@link com.zookeeper.study.distributed.ZookeeperDoubleBarrier}.
  */
 public class DistributedDoubleBarrierApp {
-    private final ZookeeperDoubleBarrier barrier;
+    private final Supplier<DistributedDoubleBarrier> participant;
+    private final List<DistributedDoubleBarrier> participants = new ArrayList<>();
     private final ExecutorService executorService;
     private static final Logger logger = LogManager.getLogger(DistributedDoubleBarrierApp.class);
 
@@ -23,14 +29,21 @@ public class DistributedDoubleBarrierApp {
      * @param barrier the initialized barrier.
      */
     public DistributedDoubleBarrierApp(ZookeeperDoubleBarrier barrier) {
-        this.barrier = barrier;
+        this(() -> new ZookeeperDoubleBarrier(barrier));
+    }
+
+    /**
+     * Constructor the application by the barrier each participant uses.
+     * @param participant supplies the barrier for a participant, it may supply the same shared instance every time.
+     */
+    public DistributedDoubleBarrierApp(Supplier<DistributedDoubleBarrier> participant) {
+        this.participant = participant;
         executorService = Executors.newCachedThreadPool();
     }
 
-    public Void test0() {
+    public Void test0(DistributedDoubleBarrier newBarrier) {
         try {
             var threadName = Thread.currentThread().getName();
-            var newBarrier = new ZookeeperDoubleBarrier(barrier);
             logger.info("{} Entering barrier.", threadName);
             newBarrier.enter(threadName);
             logger.info("{} Entered barrier.", threadName);
@@ -50,35 +63,101 @@ public class DistributedDoubleBarrierApp {
 
     public void test(int threadsCount) throws InterruptedException {
         var callables = new ArrayList<Callable<Void>>(threadsCount);
-        for (int i = 0; i < threadsCount; i++) {
-            callables.add(this::test0);
+        for (var newBarrier : participants(threadsCount)) {
+            callables.add(() -> test0(newBarrier));
         }
         logger.info("invokeAll begin");
         executorService.invokeAll(callables);
         logger.info("invokeAll done");
     }
 
+    /**
+     * Run the participants without a thread for each of them, all of them are driven by the ZooKeeper event thread.
+     *
+     * @param participantsCount the count of the participants.
+     */
+    public void testAsync(int participantsCount) {
+        var rounds = new ArrayList<CompletableFuture<Void>>(participantsCount);
+        var barriers = participants(participantsCount);
+        for (int i = 0; i < participantsCount; i++) {
+            var name = "participant-" + i;
+            var newBarrier = barriers.get(i);
+            logger.info("{} Entering barrier.", name);
+            rounds.add(newBarrier.enterAsync(name)
+                    .thenCompose(v -> {
+                        logger.info("{} Entered barrier.", name);
+                        return newBarrier.leaveAsync(name);
+                    })
+                    .thenRun(() -> logger.info("{} Leaved barrier.", name)));
+        }
+        CompletableFuture.allOf(rounds.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * The participants keep their barrier from round to round, a cyclic barrier tracks its generation in it.
+     */
+    private List<DistributedDoubleBarrier> participants(int count) {
+        while (participants.size() < count) {
+            participants.add(participant.get());
+        }
+        return participants.subList(0, count);
+    }
+
     public void close() {
         executorService.shutdown();
     }
 
     public static void main(String[] args) {
         int concurrency = 5;
+        boolean async = Arrays.asList(args).contains("--async");
+        boolean multiplexed = Arrays.asList(args).contains("--multiplexed");
+        boolean cyclic = Arrays.asList(args).contains("--cyclic");
+        boolean tree = Arrays.asList(args).contains("--tree");
+        // all the parties run in this application, the barrier stays in the JVM.
+        boolean standalone = Arrays.asList(args).contains("--standalone");
+        // the other application running the barrier takes the indexes of the tree after this one's.
+        int firstIndex = Arrays.stream(args).filter(arg -> arg.startsWith("--first-index="))
+                .mapToInt(arg -> Integer.parseInt(arg.substring("--first-index=".length()))).findFirst().orElse(0);
+        var metrics = new MetricsRegistry();
+        Metrics.install(metrics);
         try {
-            var zk = ZookeeperAppHelper.zookeeperInstance();
-            var barrier = new ZookeeperDoubleBarrier(zk, "/doublebarrier", concurrency * 2);
+            metrics.registerMBean("com.zookeeper.study:type=Metrics");
+            var sessions = SessionManager.shared();
+            sessions.awaitConnected(SessionManager.CONNECT_TIMEOUT);
+            // the barrier resumes on a new session if the shared one expires.
+            var barrier = new ZookeeperDoubleBarrier(sessions, "/doublebarrier", concurrency * (standalone ? 1 : 2),
+                    ZookeeperDoubleBarrier.LeaveMode.CHAINED, cyclic);
             // barrier.init();
-            var app = new DistributedDoubleBarrierApp(barrier);
+            DistributedDoubleBarrierApp app;
+            if (standalone) {
+                var shared = DoubleBarrierFactory.shared(barrier, concurrency);
+                app = new DistributedDoubleBarrierApp(() -> shared);
+            } else if (multiplexed) {
+                var shared = new MultiplexedDoubleBarrier(barrier, concurrency);
+                app = new DistributedDoubleBarrierApp(() -> shared);
+            } else if (tree) {
+                var index = new AtomicInteger(firstIndex);
+                app = new DistributedDoubleBarrierApp(() -> new TreeDoubleBarrier(barrier, 3,
+                        index.getAndIncrement()));
+            } else {
+                app = new DistributedDoubleBarrierApp(barrier);
+            }
             for (int i = 0; i < 5; i++) {
-                app.test(concurrency);
+                if (async) {
+                    app.testAsync(concurrency);
+                } else {
+                    app.test(concurrency);
+                }
                 logger.warn("--- round {} ---", i);
             }
-            zk.close();
+            sessions.close();
             app.close();
-            logger.info("Test done.");
+            logger.info("Test done.\n{}", metrics.snapshot());
         } catch (IOException | InterruptedException e) {
             e.printStackTrace();
             Thread.currentThread().interrupt();
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
         }
     }
 }
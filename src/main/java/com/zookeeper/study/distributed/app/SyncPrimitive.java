@@ -1,5 +1,8 @@
 package com.zookeeper.study.distributed.app;
 
+import com.zookeeper.study.*;
+import com.zookeeper.study.metrics.*;
+import com.zookeeper.study.metrics.Timer;
 import org.apache.logging.log4j.*;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.ZooDefs.*;
@@ -8,32 +11,52 @@ import org.apache.zookeeper.data.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class SyncPrimitive implements Watcher {
-    static ZooKeeper zk = null;
-    static Integer mutex;
+    static SessionManager sessions = null;
+    /**
+     * The current session, it is replaced by the renewal listener once the session has expired.
+     */
+    static volatile ZooKeeper zk = null;
+    static final Object mutex = new Object();
 
     String root;
 
     SyncPrimitive(String address) {
-        if(zk == null){
-            try {
+        synchronized (SyncPrimitive.class) {
+            if (zk == null) {
                 System.out.println("Starting ZK:");
-                zk = new ZooKeeper(address, 3000, this);
-                mutex = new Integer(-1);
+                sessions = new SessionManager(address, SessionManager.DEFAULT_SESSION_TIMEOUT);
+                sessions.addWatcher(this);
+                sessions.addRenewalListener(session -> {
+                    zk = session;
+                    // the watches were lost with the old session, the waiting primitives read and watch again.
+                    synchronized (mutex) {
+                        mutex.notifyAll();
+                    }
+                });
+                zk = sessions.session();
                 System.out.println("Finished starting ZK: " + zk);
-            } catch (IOException e) {
-                System.out.println(e.toString());
-                zk = null;
             }
         }
-        //else mutex = new Integer(-1);
+    }
+
+    /**
+     * Close the session shared by all the primitives, the next primitive starts a new one.
+     */
+    static synchronized void close() {
+        if (sessions != null) {
+            sessions.close();
+            sessions = null;
+            zk = null;
+        }
     }
 
     synchronized public void process(WatchedEvent event) {
         synchronized (mutex) {
             //System.out.println("Process: " + event.getType());
-            mutex.notify();
+            mutex.notifyAll();
         }
     }
 
@@ -43,6 +66,12 @@ public class SyncPrimitive implements Watcher {
     static public class Barrier extends SyncPrimitive {
         int size;
         String name;
+        String node;
+        private final Timer enterTimer = Metrics.instrumentation().timer("syncPrimitive.enter");
+        private final Timer leaveTimer = Metrics.instrumentation().timer("syncPrimitive.leave");
+        private final Counter childrenReads = Metrics.instrumentation().counter("syncPrimitive.getChildren");
+        private final Counter wakeups = Metrics.instrumentation().counter("syncPrimitive.wakeups");
+        private final Counter spuriousWakeups = Metrics.instrumentation().counter("syncPrimitive.spuriousWakeups");
 
         /**
          * Barrier constructor
@@ -91,15 +120,20 @@ public class SyncPrimitive implements Watcher {
          */
 
         boolean enter(String threadName) throws KeeperException, InterruptedException{
-            zk.create(root + "/" + name, new byte[0], Ids.OPEN_ACL_UNSAFE,
+            long start = System.nanoTime();
+            node = zk.create(root + "/" + name, new byte[0], Ids.OPEN_ACL_UNSAFE,
                     CreateMode.EPHEMERAL_SEQUENTIAL);
+            boolean woken = false;
             while (true) {
                 synchronized (mutex) {
+                    childrenReads.increment();
                     List<String> list = zk.getChildren(root, true);
 
                     if (list.size() < size) {
-                        mutex.wait();
+                        waitForEvent(woken);
+                        woken = true;
                     } else {
+                        enterTimer.recordSince(start);
                         return true;
                     }
                 }
@@ -115,17 +149,248 @@ public class SyncPrimitive implements Watcher {
          */
 
         boolean leave(String threadName) throws KeeperException, InterruptedException{
-            zk.delete(root + "/" + name, 0);
+            long start = System.nanoTime();
+            zk.delete(node, 0);
+            boolean woken = false;
             while (true) {
                 synchronized (mutex) {
+                    childrenReads.increment();
                     List<String> list = zk.getChildren(root, true);
                     if (list.size() > 0) {
-                        mutex.wait();
+                        waitForEvent(woken);
+                        woken = true;
                     } else {
+                        leaveTimer.recordSince(start);
                         return true;
                     }
                 }
             }
         }
+
+        /**
+         * Wait on the mutex. Being woken up and still having to wait again means the previous wakeup was spurious.
+         */
+        private void waitForEvent(boolean woken) throws InterruptedException {
+            if (woken) {
+                spuriousWakeups.increment();
+            }
+            mutex.wait();
+            wakeups.increment();
+        }
+    }
+
+    /**
+     * Producer-consumer queue. Unlike {@link Barrier} it does not wait on the shared mutex, each queue sets its own
+     * watch and only wakes up its own consumers.
+     * <p>
+     * Producers publish a batch with pipelined asynchronous sequential creates, the batch costs one round-trip instead
+     * of one for each element. Consumers claim a range of the elements of one listing, reading and deleting them with
+     * pipelined asynchronous requests, and keep the rest of the listing for the next calls. An element belongs to the
+     * consumer which deletes it, the elements another consumer deleted first are skipped.
+     * <p>
+     * Like {@link Barrier}, every producer or consumer thread has its own instance.
+     */
+    static public class Queue extends SyncPrimitive {
+        private static final String ELEMENT = "/element";
+        private final Object condition = new Object();
+        private long changes;
+        private final Watcher changed = event -> {
+            synchronized (condition) {
+                changes++;
+                condition.notifyAll();
+            }
+        };
+        private final Deque<String> listed = new ArrayDeque<>();
+        private final Timer produceTimer = Metrics.instrumentation().timer("syncPrimitive.queue.produce");
+        private final Timer consumeTimer = Metrics.instrumentation().timer("syncPrimitive.queue.consume");
+        private final Counter childrenReads = Metrics.instrumentation().counter("syncPrimitive.queue.getChildren");
+        private final Counter produced = Metrics.instrumentation().counter("syncPrimitive.queue.produced");
+        private final Counter consumed = Metrics.instrumentation().counter("syncPrimitive.queue.consumed");
+        private final Counter lostClaims = Metrics.instrumentation().counter("syncPrimitive.queue.lostClaims");
+
+        /**
+         * Queue constructor
+         *
+         * @param address the connect string of the ensemble.
+         * @param root    the path of the queue node.
+         */
+        Queue(String address, String root) {
+            super(address);
+            this.root = root;
+
+            // Create queue node
+            try {
+                zk.create(root, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException e) {
+                // another producer or consumer created it.
+            } catch (KeeperException e) {
+                throw new IllegalStateException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Add an element to the queue.
+         *
+         * @param element the data of the element.
+         * @throws KeeperException      If the element cannot be created.
+         * @throws InterruptedException If the thread is interrupted while waiting.
+         */
+        void produce(byte[] element) throws KeeperException, InterruptedException {
+            produce(List.of(element));
+        }
+
+        /**
+         * Add a batch of elements to the queue, in order. All the creates are sent before waiting for any of them.
+         *
+         * @param elements the data of the elements.
+         * @return the paths of the created elements.
+         * @throws KeeperException      If an element cannot be created, the elements before it may have been.
+         * @throws InterruptedException If the thread is interrupted while waiting.
+         */
+        List<String> produce(List<byte[]> elements) throws KeeperException, InterruptedException {
+            long start = System.nanoTime();
+            var paths = new String[elements.size()];
+            var codes = new int[elements.size()];
+            var done = new CountDownLatch(elements.size());
+            for (int i = 0; i < elements.size(); i++) {
+                final int index = i;
+                zk.create(root + ELEMENT, elements.get(i), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL,
+                        (rc, path, ctx, name) -> {
+                            codes[index] = rc;
+                            paths[index] = name;
+                            done.countDown();
+                        }, null);
+            }
+            done.await();
+            for (var rc : codes) {
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    throw KeeperException.create(KeeperException.Code.get(rc), root);
+                }
+            }
+            produced.add(elements.size());
+            produceTimer.recordSince(start);
+            return Arrays.asList(paths);
+        }
+
+        /**
+         * Remove the element at the head of the queue, waiting for one if the queue is empty.
+         *
+         * @return the data of the element.
+         * @throws KeeperException      If the queue cannot be read.
+         * @throws InterruptedException If the thread is interrupted while waiting.
+         */
+        byte[] consume() throws KeeperException, InterruptedException {
+            return consume(1).get(0);
+        }
+
+        /**
+         * Remove up to a count of elements from the head of the queue, waiting for at least one if the queue is empty.
+         * The elements are claimed from the last listing before the queue is listed again.
+         *
+         * @param max the most elements to remove, at least 1.
+         * @return the data of the elements, in the order they were produced.
+         * @throws KeeperException      If the queue cannot be read.
+         * @throws InterruptedException If the thread is interrupted while waiting.
+         */
+        List<byte[]> consume(int max) throws KeeperException, InterruptedException {
+            if (max < 1) {
+                throw new IllegalArgumentException("The count " + max + " is not positive.");
+            }
+            long start = System.nanoTime();
+            while (true) {
+                var range = new ArrayList<String>(max);
+                while (range.size() < max && !listed.isEmpty()) {
+                    range.add(listed.poll());
+                }
+                if (range.isEmpty()) {
+                    list();
+                    continue;
+                }
+                var claimed = claim(range);
+                if (!claimed.isEmpty()) {
+                    consumed.add(claimed.size());
+                    consumeTimer.recordSince(start);
+                    return claimed;
+                }
+            }
+        }
+
+        /**
+         * List the queue, waiting for the watch if it is empty. The changes counted before the listing tell if the
+         * queue may have changed since.
+         */
+        private void list() throws KeeperException, InterruptedException {
+            long seen;
+            synchronized (condition) {
+                seen = changes;
+            }
+            childrenReads.increment();
+            var children = zk.getChildren(root, changed);
+            if (children.isEmpty()) {
+                synchronized (condition) {
+                    while (changes == seen) {
+                        condition.wait();
+                    }
+                }
+                return;
+            }
+            // the sequence numbers have the same width, so the names sort in the order the elements were produced.
+            Collections.sort(children);
+            listed.addAll(children);
+        }
+
+        /**
+         * Read and delete a range of elements with pipelined requests. The elements which are gone, or which have
+         * been deleted before this consumer could, belong to another consumer. The elements which failed otherwise
+         * go back to the head of the listing, and the failure is only thrown if nothing has been claimed, an element
+         * which has been deleted is never dropped.
+         */
+        private List<byte[]> claim(List<String> range) throws KeeperException, InterruptedException {
+            var data = new byte[range.size()][];
+            var codes = new int[range.size()];
+            var done = new CountDownLatch(range.size());
+            for (int i = 0; i < range.size(); i++) {
+                final int index = i;
+                zk.getData(root + "/" + range.get(i), false, (rc, path, ctx, bytes, stat) -> {
+                    if (rc != KeeperException.Code.OK.intValue()) {
+                        codes[index] = rc;
+                        done.countDown();
+                        return;
+                    }
+                    zk.delete(path, stat.getVersion(), (deleted, deletedPath, deletedCtx) -> {
+                        codes[index] = deleted;
+                        data[index] = bytes;
+                        done.countDown();
+                    }, null);
+                }, null);
+            }
+            done.await();
+            var claimed = new ArrayList<byte[]>(range.size());
+            var failed = new ArrayList<String>();
+            KeeperException failure = null;
+            for (int i = 0; i < range.size(); i++) {
+                if (codes[i] == KeeperException.Code.OK.intValue()) {
+                    claimed.add(data[i]);
+                } else if (codes[i] == KeeperException.Code.NONODE.intValue()) {
+                    lostClaims.increment();
+                } else {
+                    failed.add(range.get(i));
+                    if (failure == null) {
+                        failure = KeeperException.create(KeeperException.Code.get(codes[i]), root + "/" + range.get(i));
+                    }
+                }
+            }
+            // claimed again before the rest of the listing, the elements stay in the order they were produced.
+            for (int i = failed.size() - 1; i >= 0; i--) {
+                listed.addFirst(failed.get(i));
+            }
+            if (failure != null && claimed.isEmpty()) {
+                throw failure;
+            }
+            return claimed;
+        }
     }
-}
\ No newline at end of file
+}
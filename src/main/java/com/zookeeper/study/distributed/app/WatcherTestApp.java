@@ -1,5 +1,6 @@
 package com.zookeeper.study.distributed.app;
 
+import com.zookeeper.study.*;
 import org.apache.logging.log4j.*;
 import org.apache.zookeeper.*;
 
@@ -17,34 +18,39 @@ public class WatcherTestApp {
         this.count = count;
     }
 
-    private static class ChildWatcher implements Watcher {
-        private final ZooKeeper zk;
-        private final String root;
+    /**
+     * Logs the changes of the children as the tracker reports them.
+     */
+    private static class ChildLogger implements ChildrenTracker.ChildrenListener {
+        @Override
+        public void added(String child) {
+            logger.info("Child {} added.", child);
+        }
 
-        public ChildWatcher(ZooKeeper zk, String root) {
-            this.zk = zk;
-            this.root = root;
+        @Override
+        public void removed(String child) {
+            logger.info("Child {} removed.", child);
         }
+
         @Override
-        public void process(WatchedEvent event) {
-            logger.info("Children watch start.");
-            try {
-                zk.getChildren(root, this);
-            } catch (KeeperException | InterruptedException e) {
-                e.printStackTrace();
-            }
-            logger.info("Children watch end.");
+        public void closing(int rc) {
+            logger.warn("Children tracker closing: {}.", KeeperException.Code.get(rc));
         }
     }
 
     public void test() {
         try {
             zooKeeper.create(root, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-            zooKeeper.getChildren(root, new ChildWatcher(zooKeeper, root));
+            var tracker = new ChildrenTracker(zooKeeper, root, new ChildLogger());
             for (int i = 0; i < count; i++) {
                 zooKeeper.create(root + "/child", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
                 logger.info("Children created.");
             }
+            // a round-trip on the session, so the tracker has had the events of all the creations.
+            zooKeeper.sync(root, (rc, path, ctx) -> {
+                logger.info("Children tracked: {}.", tracker.children());
+                tracker.close();
+            }, null);
         } catch (InterruptedException | KeeperException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,342 @@
+package com.zookeeper.study.distributed.lock;
+
+import com.zookeeper.study.metrics.*;
+import org.apache.logging.log4j.*;
+import org.apache.zookeeper.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The queue of sequential ephemeral znodes under a root which the locks and the election take turns in. A contender
+ * watches only the znode it waits for, its predecessor, so a deleted znode wakes up one session instead of all of
+ * them.
+ * <p>
+ * The znode names are the kind of the contender, an ID and the sequence number. The ID finds the znode again when the
+ * connection is lost before the create is answered.
+ */
+final class Contention {
+    private static final Logger logger = LogManager.getLogger(Contention.class);
+    private static final int SEQUENCE_LENGTH = 10;
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private final ZooKeeper zk;
+    private final String root;
+    private final Counter childrenReads;
+    private final Counter wakeups;
+    private final Counter retries;
+
+    /**
+     * Which znode a contender waits for.
+     */
+    interface Rule {
+        /**
+         * Find the znode a contender waits for.
+         *
+         * @param queue the names of the znodes in the order of their sequence numbers.
+         * @param index the index of the contender's znode in the queue.
+         * @return the name of the znode to wait for, null if the contender goes ahead.
+         */
+        String predecessor(List<String> queue, int index);
+    }
+
+    /**
+     * Wait for the znode right before, for an exclusive lock or an election.
+     */
+    static final Rule IMMEDIATE = (queue, index) -> index == 0 ? null : queue.get(index - 1);
+
+    Contention(ZooKeeper zk, String root, String metric) {
+        this.zk = zk;
+        this.root = root;
+        var instrumentation = Metrics.instrumentation();
+        this.childrenReads = instrumentation.counter(metric + ".getChildren");
+        this.wakeups = instrumentation.counter(metric + ".wakeups");
+        this.retries = instrumentation.counter(metric + ".retries");
+    }
+
+    /**
+     * A contender in the queue.
+     */
+    static final class Turn {
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+        private final CompletableFuture<Void> lost = new CompletableFuture<>();
+        private final AtomicReference<String> node = new AtomicReference<>();
+        private final String prefix;
+        private final Rule rule;
+        private final byte[] data;
+
+        private Turn(String prefix, Rule rule, byte[] data) {
+            this.prefix = prefix;
+            this.rule = rule;
+            this.data = data;
+        }
+
+        /**
+         * Get the future of the turn.
+         *
+         * @return the future which completes with the path of the znode once it is the contender's turn.
+         */
+        CompletableFuture<String> future() {
+            return future;
+        }
+
+        /**
+         * Get the future of the loss of the turn.
+         *
+         * @return the future which completes once the turn has been taken and its znode is gone without the contender
+         * leaving, because the session has expired or the znode has been deleted. It never completes if the
+         * contender leaves first.
+         */
+        CompletableFuture<Void> lost() {
+            return lost;
+        }
+
+        /**
+         * Check if it is the contender's turn, without asking the server.
+         *
+         * @return true once the turn has been taken, until the contender leaves or the turn is lost.
+         */
+        boolean isHeld() {
+            return future.isDone() && !future.isCompletedExceptionally() && !lost.isDone();
+        }
+    }
+
+    /**
+     * Join the queue.
+     *
+     * @param kind the kind of the contender, the name of its znode begins with it.
+     * @param rule which znode the contender waits for.
+     * @param data the data of the contender's znode.
+     * @return the turn of the contender.
+     */
+    Turn join(String kind, Rule rule, byte[] data) {
+        var turn = new Turn(kind + '-' + UUID.randomUUID() + '-', rule, data);
+        create(turn);
+        return turn;
+    }
+
+    /**
+     * Leave the queue, whether it is the contender's turn or not. A turn which is still being created leaves once
+     * its znode is created.
+     */
+    void leave(Turn turn) {
+        turn.future.cancel(false);
+        var node = turn.node.getAndSet("");
+        if (node != null && !node.isEmpty()) {
+            delete(node);
+        }
+    }
+
+    private void create(Turn turn) {
+        zk.create(root + '/' + turn.prefix, turn.data, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                CreateMode.EPHEMERAL_SEQUENTIAL, (rc, path, ctx, name) -> {
+                    if (rc == KeeperException.Code.OK.intValue()) {
+                        created(turn, name);
+                    } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                        createRoot(turn, root);
+                    } else if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+                        retries.increment();
+                        later(() -> find(turn));
+                    } else {
+                        fail(turn, rc, path);
+                    }
+                }, null);
+    }
+
+    /**
+     * Create the root, and its ancestors which are missing, before the contender's znode is created again.
+     */
+    private void createRoot(Turn turn, String path) {
+        zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, (rc, nodePath, ctx, name) -> {
+            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                if (path.equals(root)) {
+                    create(turn);
+                } else {
+                    createRoot(turn, root);
+                }
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                createRoot(turn, path.substring(0, path.lastIndexOf('/')));
+            } else if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+                retries.increment();
+                later(() -> createRoot(turn, path));
+            } else {
+                fail(turn, rc, nodePath);
+            }
+        }, null);
+    }
+
+    /**
+     * Look for the znode of a create whose result was lost with the connection, and create it if it is not there.
+     */
+    private void find(Turn turn) {
+        zk.getChildren(root, false, (rc, path, ctx, children) -> {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                var found = children.stream().filter(child -> child.startsWith(turn.prefix)).findFirst();
+                if (found.isPresent()) {
+                    created(turn, root + '/' + found.get());
+                } else {
+                    create(turn);
+                }
+            } else if (rc == KeeperException.Code.NONODE.intValue()) {
+                createRoot(turn, root);
+            } else if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+                retries.increment();
+                later(() -> find(turn));
+            } else {
+                fail(turn, rc, path);
+            }
+        }, null);
+    }
+
+    private void created(Turn turn, String node) {
+        if (!turn.node.compareAndSet(null, node)) {
+            // the contender left while the znode was being created.
+            delete(node);
+            return;
+        }
+        check(turn);
+    }
+
+    /**
+     * List the queue and either take the turn or watch the predecessor. A predecessor which is already gone means the
+     * queue has changed, it is listed again.
+     */
+    private void check(Turn turn) {
+        if (turn.future.isDone()) {
+            return;
+        }
+        childrenReads.increment();
+        zk.getChildren(root, false, (rc, path, ctx, children) -> {
+            if (turn.future.isDone()) {
+                // the contender has left.
+                return;
+            }
+            if (rc != KeeperException.Code.OK.intValue()) {
+                onError(turn, rc, path, () -> check(turn));
+                return;
+            }
+            var node = turn.node.get();
+            var queue = sorted(children);
+            var index = queue.indexOf(node.substring(root.length() + 1));
+            if (index < 0) {
+                fail(turn, KeeperException.Code.NONODE.intValue(), node);
+                return;
+            }
+            var predecessor = turn.rule.predecessor(queue, index);
+            if (predecessor == null) {
+                if (turn.future.complete(node)) {
+                    hold(turn, node);
+                }
+                return;
+            }
+            Watcher watcher = event -> {
+                if (event.getType() == Watcher.Event.EventType.NodeDeleted) {
+                    wakeups.increment();
+                    check(turn);
+                } else if (event.getState() == Watcher.Event.KeeperState.Expired) {
+                    fail(turn, KeeperException.Code.SESSIONEXPIRED.intValue(), node);
+                }
+            };
+            zk.exists(root + '/' + predecessor, watcher, (existsRc, existsPath, existsCtx, stat) -> {
+                if (existsRc == KeeperException.Code.NONODE.intValue()) {
+                    check(turn);
+                } else if (existsRc != KeeperException.Code.OK.intValue()) {
+                    onError(turn, existsRc, existsPath, () -> check(turn));
+                } else {
+                    logger.debug("{} waits for {}.", node, predecessor);
+                }
+            }, null);
+        }, null);
+    }
+
+    /**
+     * Watch the znode of a taken turn. Nothing else tells the holder its session has expired: the expiry, like the
+     * deletion of the znode, is delivered to this watch, and the turn is lost then.
+     */
+    private void hold(Turn turn, String node) {
+        Watcher watcher = event -> {
+            if (hasLeft(turn)) {
+                // the deletion is the contender's own.
+                return;
+            }
+            if (event.getType() == Watcher.Event.EventType.NodeDeleted
+                    || event.getState() == Watcher.Event.KeeperState.Expired) {
+                lose(turn, node, event.getType() == Watcher.Event.EventType.NodeDeleted ? "deleted" : "expired");
+            } else if (event.getType() != Watcher.Event.EventType.None) {
+                hold(turn, node);
+            }
+        };
+        zk.exists(node, watcher, (rc, path, ctx, stat) -> {
+            if (rc == KeeperException.Code.OK.intValue() || hasLeft(turn)) {
+                return;
+            }
+            if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+                retries.increment();
+                later(() -> hold(turn, node));
+            } else {
+                lose(turn, node, KeeperException.Code.get(rc).name());
+            }
+        }, null);
+    }
+
+    private static boolean hasLeft(Turn turn) {
+        return "".equals(turn.node.get());
+    }
+
+    private void lose(Turn turn, String node, String reason) {
+        if (turn.lost.complete(null)) {
+            logger.warn("Lost the turn of {}: {}.", node, reason);
+        }
+    }
+
+    private void onError(Turn turn, int rc, String path, Runnable retry) {
+        if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+            retries.increment();
+            later(retry);
+        } else {
+            fail(turn, rc, path);
+        }
+    }
+
+    private void fail(Turn turn, int rc, String path) {
+        turn.future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+    }
+
+    private void delete(String node) {
+        zk.delete(node, -1, (rc, path, ctx) -> {
+            if (rc == KeeperException.Code.CONNECTIONLOSS.intValue()) {
+                retries.increment();
+                later(() -> delete(node));
+            } else if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()
+                    && rc != KeeperException.Code.SESSIONEXPIRED.intValue()) {
+                // the znode of an expired session is gone with it.
+                logger.warn("Failed to delete {}: {}.", path, KeeperException.Code.get(rc));
+            }
+        }, null);
+    }
+
+    /**
+     * Sort the names of the znodes by their sequence numbers, their kinds and IDs do not matter.
+     */
+    static List<String> sorted(List<String> children) {
+        var queue = new ArrayList<>(children);
+        queue.sort(Comparator.comparing(Contention::sequenceOf));
+        return queue;
+    }
+
+    private static String sequenceOf(String name) {
+        return name.substring(name.length() - SEQUENCE_LENGTH);
+    }
+
+    private static void later(Runnable action) {
+        CompletableFuture.delayedExecutor(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS).execute(action);
+    }
+
+    ZooKeeper zookeeper() {
+        return zk;
+    }
+
+    String root() {
+        return root;
+    }
+}
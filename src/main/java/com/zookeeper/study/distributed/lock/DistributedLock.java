@@ -0,0 +1,50 @@
+package com.zookeeper.study.distributed.lock;
+
+import java.time.*;
+import java.util.concurrent.*;
+
+/**
+ * A lock held across applications. It is reentrant: a thread which holds it can take it again without waiting, and
+ * must release it as many times as it took it.
+ */
+public interface DistributedLock {
+
+    /**
+     * Take the lock, waiting for as long as it takes.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting, it does not hold the lock then.
+     */
+    void lock() throws InterruptedException;
+
+    /**
+     * Take the lock, giving up if it is not free in time.
+     *
+     * @param timeout how long to wait for the lock.
+     * @return true if the lock has been taken.
+     * @throws InterruptedException If the thread is interrupted while waiting, it does not hold the lock then.
+     */
+    boolean tryLock(Duration timeout) throws InterruptedException;
+
+    /**
+     * Release the lock once.
+     *
+     * @throws IllegalMonitorStateException If the thread does not hold the lock.
+     */
+    void unlock();
+
+    /**
+     * Check if the current thread holds the lock, without asking the server.
+     *
+     * @return true if the thread holds the lock, and the lock has not been lost since.
+     */
+    boolean isHeldByCurrentThread();
+
+    /**
+     * Get the future of the loss of the lock held by this application, so the holders can stop working.
+     *
+     * @return the future which completes if the lock is lost without being released, once the session has expired or
+     * the znode of the lock has been deleted. It never completes if the lock is released first.
+     * @throws IllegalMonitorStateException If the thread does not hold the lock.
+     */
+    CompletableFuture<Void> lost();
+}
@@ -0,0 +1,128 @@
+package com.zookeeper.study.distributed.lock;
+
+import org.apache.logging.log4j.*;
+import org.apache.zookeeper.*;
+
+import java.nio.charset.*;
+import java.util.concurrent.*;
+
+/**
+ * Leader election. The candidates queue up with sequential ephemeral znodes and the first one is the leader. Every
+ * other candidate watches only the znode right before its own, so when the leader resigns or its session ends, only
+ * the next candidate is told and takes over, the others keep waiting without a request.
+ * <p>
+ * Each candidate has its own instance. The znode of a candidate holds its name, so anyone can read who the leader is.
+ */
+public class LeaderElection {
+    private static final Logger logger = LogManager.getLogger(LeaderElection.class);
+    private static final String CANDIDATE = "candidate";
+    private final Contention contention;
+    private final String name;
+    private Contention.Turn turn;
+
+    /**
+     * Create a candidate.
+     *
+     * @param zookeeper zookeeper service. User have to close it manually.
+     * @param path      the path of the root node of the election, should not end with '/'. It is created if it is
+     *                  missing.
+     * @param name      the name of the candidate.
+     */
+    public LeaderElection(ZooKeeper zookeeper, String path, String name) {
+        this.contention = new Contention(zookeeper, path, "election");
+        this.name = name;
+    }
+
+    /**
+     * Run for leader.
+     *
+     * @return the future which completes once the candidate is the leader.
+     * @throws IllegalStateException If the candidate is already running.
+     */
+    public synchronized CompletableFuture<Void> runAsync() {
+        if (turn != null) {
+            throw new IllegalStateException(name + " is already running.");
+        }
+        turn = contention.join(CANDIDATE, Contention.IMMEDIATE, name.getBytes(StandardCharsets.UTF_8));
+        return turn.future().thenAccept(node -> logger.info("{} is the leader with {}.", name, node));
+    }
+
+    /**
+     * Run for leader and wait until the candidate leads.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting, the candidate has resigned then.
+     */
+    public void run() throws InterruptedException {
+        var future = runAsync();
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            resign();
+            throw e;
+        } catch (ExecutionException e) {
+            resign();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Check if the candidate leads, without asking the server.
+     *
+     * @return true if the candidate leads, until it resigns or the leadership is lost. The expiry of the session is
+     * only told once the client reconnects, a leader cut off from the ensemble should also stop when it has been
+     * disconnected for the session timeout.
+     */
+    public synchronized boolean isLeader() {
+        return turn != null && turn.isHeld();
+    }
+
+    /**
+     * Get the future of the loss of the leadership, so the leader can stop working.
+     *
+     * @return the future which completes if the leadership is lost without resigning, once the session has expired or
+     * the candidate's znode has been deleted. It never completes if the candidate resigns first.
+     * @throws IllegalStateException If the candidate is not running.
+     */
+    public synchronized CompletableFuture<Void> lost() {
+        if (turn == null) {
+            throw new IllegalStateException(name + " is not running.");
+        }
+        return turn.lost().copy();
+    }
+
+    /**
+     * Stop running, or give up the leadership. The next candidate takes over.
+     */
+    public synchronized void resign() {
+        if (turn != null) {
+            contention.leave(turn);
+            turn = null;
+        }
+    }
+
+    /**
+     * Read the name of the leader.
+     *
+     * @return the name, null if there is no candidate.
+     * @throws KeeperException      If the election cannot be read.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public String leader() throws KeeperException, InterruptedException {
+        var zk = contention.zookeeper();
+        try {
+            var candidates = Contention.sorted(zk.getChildren(contention.root(), false));
+            if (candidates.isEmpty()) {
+                return null;
+            }
+            var data = zk.getData(contention.root() + '/' + candidates.get(0), false, null);
+            return new String(data, StandardCharsets.UTF_8);
+        } catch (KeeperException.NoNodeException e) {
+            // the election has not started, or the leader has just resigned.
+            return null;
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+}
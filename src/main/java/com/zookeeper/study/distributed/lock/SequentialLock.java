@@ -0,0 +1,128 @@
+package com.zookeeper.study.distributed.lock;
+
+import java.time.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A {@link DistributedLock} which takes turns with the other applications in a {@link Contention} queue. The threads
+ * of the application first take a local lock, and only the first holder joins the queue. Taking the lock again, or
+ * taking it while another local thread shares it, costs no request to the server. The znode is deleted once the last
+ * local holder releases the lock. The lock is lost with the session, the holders are told by {@link #lost()}.
+ */
+class SequentialLock implements DistributedLock {
+    private final Contention contention;
+    private final String kind;
+    private final Contention.Rule rule;
+    private final Lock local;
+    private final ThreadLocal<int[]> holds = ThreadLocal.withInitial(() -> new int[1]);
+    private int holders;
+    private Contention.Turn turn;
+
+    /**
+     * Create a lock.
+     *
+     * @param contention the queue of the lock.
+     * @param kind       the kind of the contenders of this lock, the name of their znodes begins with it.
+     * @param rule       which znode a contender waits for.
+     * @param local      the local lock the threads of the application take first, a fair one keeps the order in
+     *                   which they asked for it.
+     */
+    SequentialLock(Contention contention, String kind, Contention.Rule rule, Lock local) {
+        this.contention = contention;
+        this.kind = kind;
+        this.rule = rule;
+        this.local = local;
+    }
+
+    @Override
+    public void lock() throws InterruptedException {
+        local.lockInterruptibly();
+        acquire(null);
+    }
+
+    @Override
+    public boolean tryLock(Duration timeout) throws InterruptedException {
+        var deadline = System.nanoTime() + timeout.toNanos();
+        if (!local.tryLock(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        return acquire(Math.max(deadline - System.nanoTime(), 0));
+    }
+
+    /**
+     * Wait for the turn of the application once the local lock is held, joining the queue if no other local thread
+     * holds the lock.
+     */
+    private boolean acquire(Long timeoutNanos) throws InterruptedException {
+        CompletableFuture<String> future;
+        synchronized (this) {
+            if (holders++ == 0) {
+                turn = contention.join(kind, rule, new byte[0]);
+            }
+            future = turn.future();
+        }
+        try {
+            if (timeoutNanos == null) {
+                future.get();
+            } else {
+                future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+            holds.get()[0]++;
+            return true;
+        } catch (TimeoutException e) {
+            release();
+            return false;
+        } catch (InterruptedException e) {
+            release();
+            throw e;
+        } catch (ExecutionException e) {
+            release();
+            throw new IllegalStateException(e.getCause());
+        } catch (CancellationException e) {
+            // another local holder gave up on the turn in between.
+            release();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void unlock() {
+        var held = holds.get();
+        if (held[0] == 0) {
+            throw new IllegalMonitorStateException("The lock is not held by " + Thread.currentThread().getName());
+        }
+        held[0]--;
+        release();
+    }
+
+    private void release() {
+        synchronized (this) {
+            if (--holders == 0) {
+                contention.leave(turn);
+                turn = null;
+            }
+        }
+        local.unlock();
+    }
+
+    @Override
+    public boolean isHeldByCurrentThread() {
+        if (holds.get()[0] == 0) {
+            return false;
+        }
+        synchronized (this) {
+            return turn.isHeld();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> lost() {
+        if (holds.get()[0] == 0) {
+            throw new IllegalMonitorStateException("The lock is not held by " + Thread.currentThread().getName());
+        }
+        synchronized (this) {
+            return turn.lost().copy();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.zookeeper.study.distributed.lock;
+
+import org.apache.zookeeper.*;
+
+import java.util.concurrent.locks.*;
+
+/**
+ * A fair exclusive {@link DistributedLock}. The applications hold the lock in the order they asked for it, each of
+ * them watches only the znode right before its own.
+ * <p>
+ * The lock is held for as long as the session is, it is lost with an expired session. The threads of an application
+ * share an instance.
+ */
+public class ZookeeperLock extends SequentialLock {
+    private static final String LOCK = "lock";
+
+    /**
+     * Create an exclusive lock.
+     *
+     * @param zookeeper zookeeper service. User have to close it manually.
+     * @param path      the path of the root node of the lock, should not end with '/'. It is created if it is missing.
+     */
+    public ZookeeperLock(ZooKeeper zookeeper, String path) {
+        super(new Contention(zookeeper, path, "lock"), LOCK, Contention.IMMEDIATE, new ReentrantLock(true));
+    }
+}
@@ -0,0 +1,51 @@
+package com.zookeeper.study.distributed.lock;
+
+import org.apache.zookeeper.*;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A fair read/write lock across applications. A reader waits only for the last writer queued before it, so the
+ * readers between two writers hold the lock together. A writer waits for the znode right before its own, reader or
+ * writer.
+ * <p>
+ * The threads of an application share an instance. Local readers share one znode, and a local writer excludes them
+ * before it joins the queue. A thread holding the write lock cannot take the read lock, nor the other way around.
+ */
+public class ZookeeperReadWriteLock {
+    private static final String READ = "read";
+    private static final String WRITE = "write";
+    private final DistributedLock readLock;
+    private final DistributedLock writeLock;
+
+    /**
+     * Create a read/write lock.
+     *
+     * @param zookeeper zookeeper service. User have to close it manually.
+     * @param path      the path of the root node of the lock, should not end with '/'. It is created if it is missing.
+     */
+    public ZookeeperReadWriteLock(ZooKeeper zookeeper, String path) {
+        var contention = new Contention(zookeeper, path, "readWriteLock");
+        var local = new ReentrantReadWriteLock(true);
+        readLock = new SequentialLock(contention, READ, ZookeeperReadWriteLock::lastWriter, local.readLock());
+        writeLock = new SequentialLock(contention, WRITE, Contention.IMMEDIATE, local.writeLock());
+    }
+
+    public DistributedLock readLock() {
+        return readLock;
+    }
+
+    public DistributedLock writeLock() {
+        return writeLock;
+    }
+
+    private static String lastWriter(List<String> queue, int index) {
+        for (int i = index - 1; i >= 0; i--) {
+            if (queue.get(i).startsWith(WRITE + '-')) {
+                return queue.get(i);
+            }
+        }
+        return null;
+    }
+}
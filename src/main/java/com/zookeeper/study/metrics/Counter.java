@@ -0,0 +1,22 @@
+package com.zookeeper.study.metrics;
+
+/**
+ * Counts events. Implementations must not allocate nor block, it is called on hot paths and on the ZooKeeper event
+ * thread.
+ */
+public interface Counter {
+
+    /**
+     * Count one event.
+     */
+    default void increment() {
+        add(1);
+    }
+
+    /**
+     * Count a batch of events, for example the bytes of a read, in one step.
+     *
+     * @param count the count of the events.
+     */
+    void add(long count);
+}
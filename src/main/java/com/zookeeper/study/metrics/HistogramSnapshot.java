@@ -0,0 +1,88 @@
+package com.zookeeper.study.metrics;
+
+import java.util.concurrent.*;
+
+/**
+ * The latencies recorded by a {@link LatencyHistogram} at some point of time. The values are in nanoseconds.
+ */
+public class HistogramSnapshot {
+    private final long[] counts;
+    private final long[] upperBounds;
+    private final long count;
+    private final long sum;
+
+    HistogramSnapshot(long[] counts, long[] upperBounds, long sum) {
+        this.counts = counts;
+        this.upperBounds = upperBounds;
+        this.sum = sum;
+        long total = 0;
+        for (var c : counts) {
+            total += c;
+        }
+        this.count = total;
+    }
+
+    /**
+     * Get the count of the recorded latencies.
+     *
+     * @return the count.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Get the mean of the recorded latencies.
+     *
+     * @return the mean, 0 if nothing is recorded.
+     */
+    public long mean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Get the highest recorded latency, within the precision of the histogram.
+     *
+     * @return the highest latency, 0 if nothing is recorded.
+     */
+    public long max() {
+        for (int i = counts.length - 1; i >= 0; i--) {
+            if (counts[i] > 0) {
+                return upperBounds[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get the latency at a percentile, within the precision of the histogram.
+     *
+     * @param percentile the percentile, from 0 to 100.
+     * @return the latency, 0 if nothing is recorded.
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        var rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBounds[i];
+            }
+        }
+        return max();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms", count,
+                millis(mean()), millis(percentile(50)), millis(percentile(99)), millis(percentile(99.9)),
+                millis(max()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,41 @@
+package com.zookeeper.study.metrics;
+
+/**
+ * Hands out the timers and counters the primitives record to. The primitives look them up once when they are created,
+ * so looking up is not on the hot path, and the same name always gives the same timer or counter.
+ */
+public interface Instrumentation {
+
+    /**
+     * Records nothing, it is the default until another instrumentation is installed by {@link Metrics#install}.
+     */
+    Instrumentation NOOP = new Instrumentation() {
+        @Override
+        public Timer timer(String name) {
+            return nanos -> {
+            };
+        }
+
+        @Override
+        public Counter counter(String name) {
+            return count -> {
+            };
+        }
+    };
+
+    /**
+     * Get the timer of a name.
+     *
+     * @param name the name of the timer, for example "barrier.enter".
+     * @return the timer.
+     */
+    Timer timer(String name);
+
+    /**
+     * Get the counter of a name.
+     *
+     * @param name the name of the counter, for example "barrier.getChildren".
+     * @return the counter.
+     */
+    Counter counter(String name);
+}
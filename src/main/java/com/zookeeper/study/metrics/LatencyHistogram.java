@@ -0,0 +1,66 @@
+package com.zookeeper.study.metrics;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A lock free histogram of latencies with log-linear buckets, the same layout as HdrHistogram: values below 64 have a
+ * bucket each, above that every power of two is split into 32 buckets, so a value is reported within about 3% of its
+ * real value for the whole range of long. Recording is one atomic increment and one {@link LongAdder} add, it never
+ * allocates.
+ */
+public class LatencyHistogram implements Timer {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT << 1;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT;
+    private static final long[] UPPER_BOUNDS = new long[BUCKET_COUNT];
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+
+    static {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            UPPER_BOUNDS[i] = upperBoundOf(i);
+        }
+    }
+
+    @Override
+    public void record(long nanos) {
+        var value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(value));
+        sum.add(value);
+    }
+
+    /**
+     * Take a snapshot of the recorded latencies. Recording may go on while the snapshot is taken, the snapshot is not
+     * atomic but every bucket is read once.
+     *
+     * @return the snapshot.
+     */
+    public HistogramSnapshot snapshot() {
+        var copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new HistogramSnapshot(copy, UPPER_BOUNDS, sum.sum());
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        var highestBit = 63 - Long.numberOfLeadingZeros(value);
+        var shift = highestBit - SUB_BUCKET_BITS;
+        var top = (int) (value >>> shift);
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_COUNT + (top - SUB_BUCKET_COUNT);
+    }
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        var shift = (bucket - LINEAR_LIMIT) / SUB_BUCKET_COUNT + 1;
+        var top = (long) ((bucket - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT);
+        var upper = ((top + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
@@ -0,0 +1,30 @@
+package com.zookeeper.study.metrics;
+
+/**
+ * The instrumentation the primitives of this project record to. Install it before creating the primitives, a primitive
+ * keeps the timers and counters it got when it was created.
+ */
+public final class Metrics {
+    private static volatile Instrumentation instrumentation = Instrumentation.NOOP;
+
+    private Metrics() {
+    }
+
+    /**
+     * Get the installed instrumentation.
+     *
+     * @return the installed instrumentation, {@link Instrumentation#NOOP} if none is installed.
+     */
+    public static Instrumentation instrumentation() {
+        return instrumentation;
+    }
+
+    /**
+     * Install an instrumentation, for example a {@link MetricsRegistry}.
+     *
+     * @param instrumentation the instrumentation to install.
+     */
+    public static void install(Instrumentation instrumentation) {
+        Metrics.instrumentation = instrumentation;
+    }
+}
@@ -0,0 +1,140 @@
+package com.zookeeper.study.metrics;
+
+import javax.management.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An {@link Instrumentation} which keeps a {@link LatencyHistogram} for each timer and a {@link LongAdder} for each
+ * counter. The recorded values are pulled, either by {@link #snapshot()} or through JMX after {@link #registerMBean}.
+ */
+public class MetricsRegistry implements Instrumentation {
+    private final Map<String, LatencyHistogram> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, AdderCounter> counters = new ConcurrentSkipListMap<>();
+
+    private static class AdderCounter extends LongAdder implements Counter {
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Override
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    @Override
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new AdderCounter());
+    }
+
+    /**
+     * Take a snapshot of all the timers and counters.
+     *
+     * @return the snapshot.
+     */
+    public MetricsSnapshot snapshot() {
+        var timerSnapshots = new TreeMap<String, HistogramSnapshot>();
+        timers.forEach((name, histogram) -> timerSnapshots.put(name, histogram.snapshot()));
+        var counterValues = new TreeMap<String, Long>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+        return new MetricsSnapshot(timerSnapshots, counterValues);
+    }
+
+    /**
+     * Register the registry to the platform MBean server. Every counter is an attribute of its name, every timer has the
+     * attributes "name.count", "name.mean", "name.p50", "name.p99", "name.p999" and "name.max" in nanoseconds.
+     *
+     * @param objectName the object name of the MBean, for example "com.zookeeper.study:type=Metrics".
+     * @throws JMException If the MBean can not be registered.
+     */
+    public void registerMBean(String objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new RegistryMBean(), new ObjectName(objectName));
+    }
+
+    private class RegistryMBean implements DynamicMBean {
+        private static final String COUNT = ".count";
+        private static final String MEAN = ".mean";
+        private static final String P50 = ".p50";
+        private static final String P99 = ".p99";
+        private static final String P999 = ".p999";
+        private static final String MAX = ".max";
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            var counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.sum();
+            }
+            var dot = attribute.lastIndexOf('.');
+            var histogram = dot < 0 ? null : timers.get(attribute.substring(0, dot));
+            if (histogram == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            var snapshot = histogram.snapshot();
+            switch (attribute.substring(dot)) {
+                case COUNT:
+                    return snapshot.count();
+                case MEAN:
+                    return snapshot.mean();
+                case P50:
+                    return snapshot.percentile(50);
+                case P99:
+                    return snapshot.percentile(99);
+                case P999:
+                    return snapshot.percentile(99.9);
+                case MAX:
+                    return snapshot.max();
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            var list = new AttributeList();
+            for (var attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // skip the unknown attribute, as the contract of getAttributes requires.
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only.");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            var attributes = new ArrayList<MBeanAttributeInfo>();
+            for (var name : counters.keySet()) {
+                attributes.add(longAttribute(name, "Counter " + name));
+            }
+            for (var name : timers.keySet()) {
+                for (var suffix : List.of(COUNT, MEAN, P50, P99, P999, MAX)) {
+                    attributes.add(longAttribute(name + suffix, "Timer " + name + " in nanoseconds"));
+                }
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Metrics of the ZooKeeper primitives",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        private MBeanAttributeInfo longAttribute(String name, String description) {
+            return new MBeanAttributeInfo(name, Long.class.getName(), description, true, false, false);
+        }
+    }
+}
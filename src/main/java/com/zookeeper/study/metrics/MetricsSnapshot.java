@@ -0,0 +1,42 @@
+package com.zookeeper.study.metrics;
+
+import java.util.*;
+
+/**
+ * The timers and counters of a {@link MetricsRegistry} at some point of time.
+ */
+public class MetricsSnapshot {
+    private final SortedMap<String, HistogramSnapshot> timers;
+    private final SortedMap<String, Long> counters;
+
+    MetricsSnapshot(SortedMap<String, HistogramSnapshot> timers, SortedMap<String, Long> counters) {
+        this.timers = Collections.unmodifiableSortedMap(timers);
+        this.counters = Collections.unmodifiableSortedMap(counters);
+    }
+
+    /**
+     * Get the timers by their names.
+     *
+     * @return the timers.
+     */
+    public SortedMap<String, HistogramSnapshot> timers() {
+        return timers;
+    }
+
+    /**
+     * Get the counters by their names.
+     *
+     * @return the counters.
+     */
+    public SortedMap<String, Long> counters() {
+        return counters;
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder();
+        timers.forEach((name, histogram) -> builder.append(name).append(": ").append(histogram).append('\n'));
+        counters.forEach((name, value) -> builder.append(name).append(": ").append(value).append('\n'));
+        return builder.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package com.zookeeper.study.metrics;
+
+/**
+ * Records the latency of an operation. Implementations must not allocate nor block, it is called on hot paths and on
+ * the ZooKeeper event thread.
+ */
+public interface Timer {
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    void record(long nanos);
+
+    /**
+     * Record the latency since a start time taken from {@link System#nanoTime()}.
+     *
+     * @param startNanos the start time.
+     */
+    default void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+}
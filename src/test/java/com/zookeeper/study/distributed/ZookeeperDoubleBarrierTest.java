@@ -0,0 +1,167 @@
+package com.zookeeper.study.distributed;
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.server.*;
+import org.junit.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the barrier against a standalone server embedded in the test JVM.
+ */
+public class ZookeeperDoubleBarrierTest {
+    private static final int TICK_TIME = 2000;
+    private static final int SESSION_TIMEOUT = 10 * 1000;
+    private static final long TIMEOUT_SECONDS = 10;
+    private static ServerCnxnFactory factory;
+    private static ZooKeeper zk;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        System.setProperty("zookeeper.admin.enableServer", "false");
+        var dir = Files.createTempDirectory("zookeeper-test").toFile();
+        factory = ServerCnxnFactory.createFactory(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+        factory.startup(new ZooKeeperServer(dir, dir, TICK_TIME));
+        var connected = new CountDownLatch(1);
+        zk = new ZooKeeper("127.0.0.1:" + factory.getLocalPort(), SESSION_TIMEOUT, event -> {
+            if (Watcher.Event.KeeperState.SyncConnected.equals(event.getState())) {
+                connected.countDown();
+            }
+        });
+        assertTrue(connected.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @AfterClass
+    public static void stopServer() throws InterruptedException {
+        if (zk != null) {
+            zk.close();
+        }
+        if (factory != null) {
+            factory.shutdown();
+        }
+    }
+
+    /**
+     * A procedure which arrives once its generation has opened without it and has been cleaned up misses the
+     * generation, instead of creating it again and waiting on it forever.
+     */
+    @Test
+    public void lateArrivalMissesCleanedUpGeneration() throws Exception {
+        var path = "/late-arrival";
+        var late = runRoundWithout(path, OpenPolicy.quorum(2, 3));
+
+        var missed = assertMissed(late.enterAsync("p3"));
+        assertEquals(0, missed.generation());
+        assertEquals(1, late.generation());
+        assertFalse(zk.getChildren(path, false).contains("generation-0"));
+    }
+
+    /**
+     * The deadline of a late procedure never opens a round of its own in a generation which has been cleaned up.
+     */
+    @Test
+    public void lateArrivalOpensNoPhantomRound() throws Exception {
+        var path = "/phantom-round";
+        var late = runRoundWithout(path, OpenPolicy.quorum(2, 3).withDeadline(Duration.ofMillis(200)));
+
+        assertMissed(late.enterAsync("p3"));
+        Thread.sleep(400);
+        assertFalse(zk.getChildren(path, false).contains("generation-0"));
+    }
+
+    /**
+     * Recording the generation which opened does not hold back the rounds which follow.
+     */
+    @Test
+    public void cyclicRoundsRunBackToBack() throws Exception {
+        var template = new ZookeeperDoubleBarrier(zk, "/back-to-back", OpenPolicy.all(3),
+                ZookeeperDoubleBarrier.LeaveMode.CHAINED, true);
+        template.init();
+        var barriers = List.of(new ZookeeperDoubleBarrier(template), new ZookeeperDoubleBarrier(template),
+                new ZookeeperDoubleBarrier(template));
+        runRounds(barriers, 3);
+        for (var barrier : barriers) {
+            assertEquals(3, barrier.generation());
+        }
+    }
+
+    /**
+     * The participants of an application which runs again on the same root start from the generation after the last
+     * one which opened, whether the barrier is initialized or not.
+     */
+    @Test
+    public void restartedParticipantsJoinNextGeneration() throws Exception {
+        var path = "/restart";
+        var policy = OpenPolicy.all(2);
+        var first = new ZookeeperDoubleBarrier(zk, path, policy, ZookeeperDoubleBarrier.LeaveMode.CHAINED, true);
+        first.init();
+        runRounds(List.of(new ZookeeperDoubleBarrier(first), new ZookeeperDoubleBarrier(first)), 3);
+
+        var initialized = new ZookeeperDoubleBarrier(zk, path, policy, ZookeeperDoubleBarrier.LeaveMode.CHAINED, true);
+        initialized.init();
+        assertEquals(3, initialized.generation());
+        var uninitialized = new ZookeeperDoubleBarrier(zk, path, policy, ZookeeperDoubleBarrier.LeaveMode.CHAINED,
+                true);
+        var barriers = List.of(new ZookeeperDoubleBarrier(initialized), uninitialized);
+        runRounds(barriers, 1);
+        for (var barrier : barriers) {
+            assertEquals(4, barrier.generation());
+        }
+    }
+
+    private static void runRounds(List<ZookeeperDoubleBarrier> barriers, int rounds) throws Exception {
+        for (int round = 0; round < rounds; round++) {
+            var enters = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < barriers.size(); i++) {
+                enters.add(barriers.get(i).enterAsync("p" + i));
+            }
+            CompletableFuture.allOf(enters.toArray(new CompletableFuture<?>[0])).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            var leaves = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < barriers.size(); i++) {
+                leaves.add(barriers.get(i).leaveAsync("p" + i));
+            }
+            CompletableFuture.allOf(leaves.toArray(new CompletableFuture<?>[0])).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Two of three procedures run the first generation to the end, the third has started with them but has not
+     * arrived yet.
+     *
+     * @return the barrier of the third procedure, which is still in the first generation.
+     */
+    private static ZookeeperDoubleBarrier runRoundWithout(String path, OpenPolicy policy) throws Exception {
+        var template = new ZookeeperDoubleBarrier(zk, path, policy, ZookeeperDoubleBarrier.LeaveMode.CHAINED, true);
+        template.init();
+        var first = new ZookeeperDoubleBarrier(template);
+        var second = new ZookeeperDoubleBarrier(template);
+        CompletableFuture.allOf(first.enterAsync("p1"), second.enterAsync("p2"))
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        CompletableFuture.allOf(first.leaveAsync("p1"), second.leaveAsync("p2"))
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        // the last procedure to leave cleans the generation up in the background.
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (zk.getChildren(path, false).contains("generation-0")) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+        return new ZookeeperDoubleBarrier(template);
+    }
+
+    private static MissedGenerationException assertMissed(CompletableFuture<Void> enter) throws Exception {
+        try {
+            enter.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof MissedGenerationException);
+            return (MissedGenerationException) e.getCause();
+        }
+        throw new AssertionError("The late procedure entered.");
+    }
+}